@@ -0,0 +1,418 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-at-a-time evaluation of bound expression trees.
+ *
+ * <p>Rows are processed in blocks of {@link #BLOCK_SIZE}. For each block
+ * the tree is walked once and every node runs a primitive loop over the
+ * whole block, writing into a scratch buffer that stays in L1/L2 cache.
+ * Variable operands are read straight from their column and constant
+ * operands use scalar kernels, so neither is copied. The loops themselves
+ * live in {@link BlockKernels}. The tree is strength-reduced first (see
+ * {@link StrengthReduction}), and repeated subtrees are computed once per
+ * block into a buffer of their own (see {@link CommonSubexpressions}).
+ *
+ * <p>In the exception-free mode division and the {@code ln}, {@code log}
+ * and {@code sqrt} loops flag failing rows in a block status array instead
+ * of throwing; those rows come out as NaN (see {@link EvaluationStatus}).
+ *
+ * <p>Trees deeper than {@link DeepTrees#RECURSION_LIMIT} are evaluated row
+ * by row with the explicit-stack walks of {@link DeepTrees}, without
+ * strength reduction, as the other evaluation paths do.
+ */
+final class BatchEvaluator {
+
+    /** 1024 doubles = 8 KB per buffer. */
+    static final int BLOCK_SIZE = 1024;
+
+    private final BlockKernels kernels = BlockKernels.INSTANCE;
+    private final Expr root;
+    private final double[][] columns;
+    /** Values of one row, for trees evaluated row by row; else null. */
+    private final double[] row;
+    private final List<double[]> buffers = new ArrayList<>();
+
+    private final Map<Expr, Integer> temporaries;
+    private final double[][] temporaryBuffers;
+    private final int[] computedInBlock;
+    private int block;
+
+    /** Flags of the rows of the current block; null if errors throw. */
+    private final byte[] rowStatus;
+
+    BatchEvaluator(Expr expr, double[][] columns) {
+        this(expr, columns, false);
+    }
+
+    BatchEvaluator(Expr expr, double[][] columns, boolean quiet) {
+        boolean deep = expr.depth() > DeepTrees.RECURSION_LIMIT;
+        this.root = deep
+            ? expr
+            : CommonSubexpressions.share(StrengthReduction.reduce(expr));
+        this.columns = columns;
+        this.row = deep ? new double[columns.length] : null;
+        this.temporaries = deep
+            ? Collections.emptyMap()
+            : CommonSubexpressions.temporaries(root);
+        this.temporaryBuffers = new double[temporaries.size()][];
+        this.computedInBlock = new int[temporaries.size()];
+        Arrays.fill(computedInBlock, -1);
+        this.rowStatus = quiet ? new byte[BLOCK_SIZE] : null;
+    }
+
+    /**
+     * Evaluates rows {@code [from, to)} of the columns into the same rows of
+     * {@code out}.
+     */
+    static void evaluate(
+        Expr expr,
+        double[][] columns,
+        double[] out,
+        int from,
+        int to
+    ) {
+        check(expr, columns, out, from, to);
+        evaluateUnchecked(expr, columns, out, from, to);
+    }
+
+    /**
+     * Evaluates every row of the columns into {@code out} without throwing
+     * for division by zero or domain errors, writing the status of each row
+     * to {@code status} unless it is null.
+     */
+    static void evaluate(
+        Expr expr,
+        double[][] columns,
+        double[] out,
+        byte[] status
+    ) {
+        check(expr, columns, out, 0, out == null ? 0 : out.length);
+        if (status != null && status.length < out.length) {
+            throw new IllegalArgumentException(
+                "Status has " + status.length + " rows, expected at least " +
+                out.length
+            );
+        }
+        BatchEvaluator evaluator = new BatchEvaluator(expr, columns, true);
+        for (int start = 0; start < out.length; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, out.length - start);
+            evaluator.evaluateBlock(start, length, out, start, status);
+        }
+    }
+
+    /**
+     * Validates the arguments of {@link #evaluate} without evaluating.
+     */
+    static void check(
+        Expr expr,
+        double[][] columns,
+        double[] out,
+        int from,
+        int to
+    ) {
+        if (columns == null || out == null) {
+            throw new IllegalArgumentException(
+                "Columns and output cannot be null"
+            );
+        }
+        if (from < 0 || from > to || to > out.length) {
+            throw new IndexOutOfBoundsException(
+                "Row range [" + from + ", " + to + ") out of bounds for " +
+                out.length + " rows"
+            );
+        }
+        checkColumns(expr, columns, to);
+    }
+
+    /**
+     * Evaluates a range already validated by {@link #check}. Ranges that
+     * start on a block boundary of an enclosing range see the same blocks,
+     * and so fail with the same exception, as the enclosing evaluation.
+     */
+    static void evaluateUnchecked(
+        Expr expr,
+        double[][] columns,
+        double[] out,
+        int from,
+        int to
+    ) {
+        BatchEvaluator evaluator = new BatchEvaluator(expr, columns);
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, to - start);
+            evaluator.evaluateBlock(start, length, out, start);
+        }
+    }
+
+    /**
+     * Evaluates one block of at most {@link #BLOCK_SIZE} validated rows
+     * into {@code out[outOffset, outOffset + length)}. The scratch buffers
+     * are kept, so one evaluator can be reused for many blocks as long as
+     * it reads the same column arrays.
+     */
+    void evaluateBlock(int start, int length, double[] out, int outOffset) {
+        if (row != null) {
+            evaluateRows(start, length, out, outOffset);
+            return;
+        }
+        block++;
+        double[] result = evaluate(root, start, length, 0);
+        System.arraycopy(result, 0, out, outOffset, length);
+    }
+
+    /**
+     * Evaluates one block in the exception-free mode: rows that fail get
+     * NaN, whatever the operators above the failing node made of it, and
+     * the flags of every row are copied to {@code status} unless it is
+     * null.
+     */
+    void evaluateBlock(
+        int start,
+        int length,
+        double[] out,
+        int outOffset,
+        byte[] status
+    ) {
+        Arrays.fill(rowStatus, 0, length, EvaluationStatus.OK);
+        evaluateBlock(start, length, out, outOffset);
+        for (int i = 0; i < length; i++) {
+            if (rowStatus[i] != EvaluationStatus.OK) {
+                out[outOffset + i] = Double.NaN;
+            }
+        }
+        if (status != null) {
+            System.arraycopy(rowStatus, 0, status, outOffset, length);
+        }
+    }
+
+    /**
+     * Evaluates one block row by row, for trees too deep for the block
+     * walk; in the exception-free mode failing rows are flagged as the
+     * kernels flag them.
+     */
+    private void evaluateRows(
+        int start,
+        int length,
+        double[] out,
+        int outOffset
+    ) {
+        for (int i = 0; i < length; i++) {
+            for (int slot = 0; slot < columns.length; slot++) {
+                if (columns[slot] != null) {
+                    row[slot] = columns[slot][start + i];
+                }
+            }
+            out[outOffset + i] = rowStatus != null
+                ? DeepTrees.evaluateOrNaN(root, row, rowStatus, i)
+                : DeepTrees.evaluate(root, null, row);
+        }
+    }
+
+    private static void checkColumns(Expr root, double[][] columns, int to) {
+        // Explicit stack, right operands pushed first: deep trees are
+        // checked too, in the order of a recursive walk
+        List<Expr> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.remove(pending.size() - 1);
+            checkColumn(expr, columns, to);
+            if (expr instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) expr;
+                pending.add(binOp.getRight());
+                pending.add(binOp.getLeft());
+            } else if (expr instanceof FunctionExpr) {
+                pending.add(((FunctionExpr) expr).getArg());
+            }
+        }
+    }
+
+    private static void checkColumn(Expr expr, double[][] columns, int to) {
+        if (expr instanceof Variable) {
+            Variable variable = (Variable) expr;
+            int slot = variable.getSlot();
+            if (slot < 0) {
+                throw new IllegalStateException(
+                    "Variable '" + variable.getName() + "' is not bound to a slot"
+                );
+            }
+            if (slot >= columns.length || columns[slot] == null) {
+                throw new IllegalArgumentException(
+                    "No column for variable '" + variable.getName() + "'"
+                );
+            }
+            if (columns[slot].length < to) {
+                throw new IllegalArgumentException(
+                    "Column for variable '" + variable.getName() +
+                    "' has fewer than " + to + " rows"
+                );
+            }
+        } else if (
+            !(expr instanceof BinaryOp) &&
+            !(expr instanceof FunctionExpr) &&
+            !(expr instanceof Constant)
+        ) {
+            throw new UnsupportedOperationException(
+                expr.getClass().getSimpleName() +
+                " does not support batch evaluation"
+            );
+        }
+    }
+
+    /**
+     * Evaluates one block of a node and returns the buffer holding it: the
+     * node's own buffer if it is shared, the scratch buffer of the given
+     * depth otherwise.
+     */
+    private double[] evaluate(Expr node, int start, int length, int depth) {
+        Integer temporary = temporaries.get(node);
+        if (temporary == null) {
+            return evaluateNode(node, start, length, depth);
+        }
+        if (temporaryBuffers[temporary] == null) {
+            temporaryBuffers[temporary] = new double[BLOCK_SIZE];
+        }
+        double[] saved = temporaryBuffers[temporary];
+        if (computedInBlock[temporary] != block) {
+            double[] result = evaluateNode(node, start, length, depth);
+            System.arraycopy(result, 0, saved, 0, length);
+            computedInBlock[temporary] = block;
+        }
+        return saved;
+    }
+
+    private double[] evaluateNode(
+        Expr node,
+        int start,
+        int length,
+        int depth
+    ) {
+        double[] dest = buffer(depth);
+
+        if (node instanceof Constant) {
+            Arrays.fill(dest, 0, length, ((Constant) node).getValue());
+        } else if (node instanceof Variable) {
+            int slot = ((Variable) node).getSlot();
+            System.arraycopy(columns[slot], start, dest, 0, length);
+        } else if (node instanceof BinaryOp) {
+            evaluateBinary((BinaryOp) node, start, length, depth, dest);
+        } else {
+            FunctionExpr function = (FunctionExpr) node;
+            double[] arg;
+            int offset;
+            if (function.getArg() instanceof Variable) {
+                arg = columns[((Variable) function.getArg()).getSlot()];
+                offset = start;
+            } else {
+                arg = evaluate(function.getArg(), start, length, depth);
+                offset = 0;
+            }
+            if (rowStatus != null) {
+                kernels.functionOrNaN(
+                    function.getName(),
+                    arg,
+                    offset,
+                    dest,
+                    length,
+                    rowStatus
+                );
+            } else {
+                kernels.function(function.getName(), arg, offset, dest, length);
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * The left operand is evaluated into {@code dest} itself (depth d) and
+     * the right one into depth d + 1, so the left side must go first: its
+     * own subtree may use depth d + 1 as scratch. Shared operands come back
+     * in their own buffers instead, which are only written once per block.
+     */
+    private void evaluateBinary(
+        BinaryOp binOp,
+        int start,
+        int length,
+        int depth,
+        double[] dest
+    ) {
+        String op = binOp.getOperator();
+        Expr left = binOp.getLeft();
+        Expr right = binOp.getRight();
+
+        double[] a = null;
+        int aOffset = 0;
+        if (left instanceof Variable) {
+            a = columns[((Variable) left).getSlot()];
+            aOffset = start;
+        } else if (!(left instanceof Constant)) {
+            a = evaluate(left, start, length, depth);
+        }
+
+        if (right instanceof Constant) {
+            double b = ((Constant) right).getValue();
+            if (rowStatus != null && binOp.getOpcode() == PostfixProgram.DIV) {
+                int flag = EvaluationStatus.divide(b);
+                if (flag != EvaluationStatus.OK) {
+                    Arrays.fill(dest, 0, length, Double.NaN);
+                    for (int i = 0; i < length; i++) {
+                        rowStatus[i] |= flag;
+                    }
+                    return;
+                }
+            }
+            if (a == null) {
+                // Constant op constant: compute once, then broadcast.
+                dest[0] = ((Constant) left).getValue();
+                kernels.vectorScalar(op, dest, 0, b, dest, 1);
+                Arrays.fill(dest, 1, length, dest[0]);
+                return;
+            }
+            kernels.vectorScalar(op, a, aOffset, b, dest, length);
+            return;
+        }
+
+        double[] b;
+        int bOffset;
+        if (right instanceof Variable) {
+            b = columns[((Variable) right).getSlot()];
+            bOffset = start;
+        } else {
+            b = evaluate(right, start, length, depth + 1);
+            bOffset = 0;
+        }
+
+        if (rowStatus != null && binOp.getOpcode() == PostfixProgram.DIV) {
+            if (a == null) {
+                // dest is not b: b is a column, a shared buffer or depth + 1.
+                Arrays.fill(dest, 0, length, ((Constant) left).getValue());
+                a = dest;
+            }
+            kernels.divideOrNaN(
+                a,
+                aOffset,
+                b,
+                bOffset,
+                dest,
+                length,
+                rowStatus
+            );
+        } else if (a == null) {
+            double value = ((Constant) left).getValue();
+            kernels.scalarVector(op, value, b, bOffset, dest, length);
+        } else {
+            kernels.vectorVector(op, a, aOffset, b, bOffset, dest, length);
+        }
+    }
+
+    private double[] buffer(int depth) {
+        while (buffers.size() <= depth) {
+            buffers.add(new double[BLOCK_SIZE]);
+        }
+        return buffers.get(depth);
+    }
+}
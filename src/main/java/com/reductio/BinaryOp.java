@@ -6,15 +6,24 @@ import java.util.Objects;
 /**
  * Represents binary operations in mathematical expressions (+, -, *, /, ^).
  *
+ * <p>The operator is resolved once, when the node is built, to one of the
+ * opcodes {@link PostfixProgram#ADD}, {@link PostfixProgram#SUB},
+ * {@link PostfixProgram#MUL}, {@link PostfixProgram#DIV} and
+ * {@link PostfixProgram#POW}; evaluation, simplification, printing and
+ * equality all switch on the opcode.
+ *
  * @author Reductio Team
  * @version 1.0.0
  * @since 1.0.0
  */
 public final class BinaryOp extends Expr {
 
-    private final String operator;
+    private final int opcode;
     private final Expr left;
     private final Expr right;
+    private final long fingerprint;
+    private final long canonicalFingerprint;
+    private final int depth;
 
     /**
      * Creates a new binary operation.
@@ -36,13 +45,76 @@ public final class BinaryOp extends Expr {
         if (right == null) {
             throw new IllegalArgumentException("Right operand cannot be null");
         }
-        if (!isValidOperator(operator)) {
+        int opcode = opcode(operator);
+        if (opcode < 0) {
             throw new IllegalArgumentException("Invalid operator: " + operator);
         }
 
-        this.operator = operator.trim();
+        this.opcode = opcode;
         this.left = left;
         this.right = right;
+        this.fingerprint = mix(
+            mix(opcode, left.fingerprint()),
+            right.fingerprint()
+        );
+        this.canonicalFingerprint = canonicalFingerprint(opcode, left, right);
+        this.depth = 1 + Math.max(left.depth(), right.depth());
+    }
+
+    /**
+     * Creates a binary operation from an opcode already resolved, as the
+     * parser and the rewriting passes do.
+     */
+    BinaryOp(int opcode, Expr left, Expr right) {
+        this.opcode = opcode;
+        this.left = left;
+        this.right = right;
+        this.fingerprint = mix(
+            mix(opcode, left.fingerprint()),
+            right.fingerprint()
+        );
+        this.canonicalFingerprint = canonicalFingerprint(opcode, left, right);
+        this.depth = 1 + Math.max(left.depth(), right.depth());
+    }
+
+    /**
+     * Maps an operator symbol to its opcode.
+     *
+     * @return the opcode, or -1 if the symbol is not an operator
+     */
+    static int opcode(String operator) {
+        switch (operator) {
+            case "+":
+                return PostfixProgram.ADD;
+            case "-":
+                return PostfixProgram.SUB;
+            case "*":
+                return PostfixProgram.MUL;
+            case "/":
+                return PostfixProgram.DIV;
+            case "^":
+                return PostfixProgram.POW;
+            default:
+                return -1;
+        }
+    }
+
+    private static long canonicalFingerprint(
+        int opcode,
+        Expr left,
+        Expr right
+    ) {
+        long first = left.canonicalFingerprint();
+        long second = right.canonicalFingerprint();
+        if (
+            (opcode == PostfixProgram.ADD || opcode == PostfixProgram.MUL) &&
+            first > second
+        ) {
+            long swap = first;
+            first = second;
+            second = swap;
+        }
+        return mix(mix(opcode, first), second);
     }
 
     /**
@@ -51,7 +123,18 @@ public final class BinaryOp extends Expr {
      * @return the operator string
      */
     public String getOperator() {
-        return operator;
+        return PostfixProgram.MNEMONICS[opcode];
+    }
+
+    /**
+     * Gets the opcode of the operator: {@link PostfixProgram#ADD},
+     * {@link PostfixProgram#SUB}, {@link PostfixProgram#MUL},
+     * {@link PostfixProgram#DIV} or {@link PostfixProgram#POW}.
+     *
+     * @return the opcode
+     */
+    public int getOpcode() {
+        return opcode;
     }
 
     /**
@@ -74,25 +157,35 @@ public final class BinaryOp extends Expr {
 
     @Override
     public Expr simplify() {
-        Expr leftSimp = left.simplify();
-        Expr rightSimp = right.simplify();
-
-        if (leftSimp instanceof Constant && rightSimp instanceof Constant) {
-            return evaluateConstants((Constant) leftSimp, (Constant) rightSimp);
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.simplify(this, null, null);
         }
-
-        return applySimplificationRules(leftSimp, rightSimp);
+        return combine(left.simplify(), right.simplify(), null, null);
     }
 
     @Override
     public Expr simplify(Map<Integer, String> steps, int[] stepCounter) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.simplify(this, steps, stepCounter);
+        }
         if (steps != null) {
             steps.put(stepCounter[0]++, this.show());
         }
 
         Expr leftSimp = left.simplify(steps, stepCounter);
         Expr rightSimp = right.simplify(steps, stepCounter);
+        return combine(leftSimp, rightSimp, steps, stepCounter);
+    }
 
+    /**
+     * Simplifies this operation once its operands are simplified.
+     */
+    Expr combine(
+        Expr leftSimp,
+        Expr rightSimp,
+        Map<Integer, String> steps,
+        int[] stepCounter
+    ) {
         if (leftSimp instanceof Constant && rightSimp instanceof Constant) {
             Expr result = evaluateConstants(
                 (Constant) leftSimp,
@@ -113,8 +206,12 @@ public final class BinaryOp extends Expr {
 
     @Override
     public String show() {
-        if (needsParentheses(left, operator, true)) {
-            if (needsParentheses(right, operator, false)) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.show(this);
+        }
+        String operator = getOperator();
+        if (needsParentheses(left, true)) {
+            if (needsParentheses(right, false)) {
                 return (
                     "(" +
                     left.show() +
@@ -128,7 +225,7 @@ public final class BinaryOp extends Expr {
                 return "(" + left.show() + ") " + operator + " " + right.show();
             }
         } else {
-            if (needsParentheses(right, operator, false)) {
+            if (needsParentheses(right, false)) {
                 return left.show() + " " + operator + " (" + right.show() + ")";
             } else {
                 return left.show() + " " + operator + " " + right.show();
@@ -138,33 +235,58 @@ public final class BinaryOp extends Expr {
 
     @Override
     public double evaluate(Map<String, Double> variables) {
-        double leftVal = left.evaluate(variables);
-        double rightVal = right.evaluate(variables);
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.evaluate(this, variables, null);
+        }
+        return apply(left.evaluate(variables), right.evaluate(variables));
+    }
 
-        switch (operator) {
-            case "+":
+    @Override
+    public double evaluate(double[] values) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.evaluate(this, null, values);
+        }
+        return apply(left.evaluate(values), right.evaluate(values));
+    }
+
+    @Override
+    public Expr bind(Bindings bindings) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.bind(this, bindings);
+        }
+        Expr boundLeft = left.bind(bindings);
+        Expr boundRight = right.bind(bindings);
+        if (boundLeft == left && boundRight == right) {
+            return this;
+        }
+        return new BinaryOp(opcode, boundLeft, boundRight);
+    }
+
+    double apply(double leftVal, double rightVal) {
+        switch (opcode) {
+            case PostfixProgram.ADD:
                 return leftVal + rightVal;
-            case "-":
+            case PostfixProgram.SUB:
                 return leftVal - rightVal;
-            case "*":
+            case PostfixProgram.MUL:
                 return leftVal * rightVal;
-            case "/":
+            case PostfixProgram.DIV:
                 if (Math.abs(rightVal) < 1e-10) {
                     throw new ArithmeticException("Division by zero");
                 }
                 return leftVal / rightVal;
-            case "^":
+            case PostfixProgram.POW:
                 return Math.pow(leftVal, rightVal);
             default:
                 throw new IllegalStateException(
-                    "Unknown operator: " + operator
+                    "Unknown operator: " + getOperator()
                 );
         }
     }
 
     @Override
     public Expr copy() {
-        return new BinaryOp(operator, left.copy(), right.copy());
+        return this;
     }
 
     @Override
@@ -172,8 +294,15 @@ public final class BinaryOp extends Expr {
         if (this == obj) return true;
         if (!(obj instanceof BinaryOp)) return false;
         BinaryOp binaryOp = (BinaryOp) obj;
+        if (
+            opcode != binaryOp.opcode || fingerprint != binaryOp.fingerprint
+        ) {
+            return false;
+        }
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.equal(this, binaryOp);
+        }
         return (
-            Objects.equals(operator, binaryOp.operator) &&
             Objects.equals(left, binaryOp.left) &&
             Objects.equals(right, binaryOp.right)
         );
@@ -181,16 +310,45 @@ public final class BinaryOp extends Expr {
 
     @Override
     public int hashCode() {
-        return Objects.hash(operator, left, right);
+        return Long.hashCode(fingerprint);
     }
 
-    private static boolean isValidOperator(String op) {
+    @Override
+    int depth() {
+        return depth;
+    }
+
+    @Override
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public long canonicalFingerprint() {
+        return canonicalFingerprint;
+    }
+
+    @Override
+    public boolean equalsCanonical(Expr other) {
+        if (this == other) return true;
+        if (!(other instanceof BinaryOp)) return false;
+        BinaryOp binaryOp = (BinaryOp) other;
+        if (
+            opcode != binaryOp.opcode ||
+            canonicalFingerprint != binaryOp.canonicalFingerprint
+        ) {
+            return false;
+        }
+        if (
+            left.equalsCanonical(binaryOp.left) &&
+            right.equalsCanonical(binaryOp.right)
+        ) {
+            return true;
+        }
         return (
-            "+".equals(op) ||
-            "-".equals(op) ||
-            "*".equals(op) ||
-            "/".equals(op) ||
-            "^".equals(op)
+            isCommutative() &&
+            left.equalsCanonical(binaryOp.right) &&
+            right.equalsCanonical(binaryOp.left)
         );
     }
 
@@ -198,19 +356,19 @@ public final class BinaryOp extends Expr {
         double leftVal = left.getValue();
         double rightVal = right.getValue();
 
-        switch (operator) {
-            case "+":
+        switch (opcode) {
+            case PostfixProgram.ADD:
                 return new Constant(leftVal + rightVal);
-            case "-":
+            case PostfixProgram.SUB:
                 return new Constant(leftVal - rightVal);
-            case "*":
+            case PostfixProgram.MUL:
                 return new Constant(leftVal * rightVal);
-            case "/":
+            case PostfixProgram.DIV:
                 if (Math.abs(rightVal) < 1e-10) {
                     return this;
                 }
                 return new Constant(leftVal / rightVal);
-            case "^":
+            case PostfixProgram.POW:
                 return new Constant(Math.pow(leftVal, rightVal));
             default:
                 return this;
@@ -221,22 +379,22 @@ public final class BinaryOp extends Expr {
         if (right instanceof Constant) {
             Constant rightConst = (Constant) right;
 
-            switch (operator) {
-                case "*":
+            switch (opcode) {
+                case PostfixProgram.MUL:
                     if (rightConst.isZero()) return new Constant(0);
                     if (rightConst.isOne()) return left;
                     break;
-                case "+":
+                case PostfixProgram.ADD:
                     if (rightConst.isZero()) return left;
                     break;
-                case "-":
+                case PostfixProgram.SUB:
                     if (rightConst.isZero()) return left;
                     break;
-                case "^":
+                case PostfixProgram.POW:
                     if (rightConst.isZero()) return new Constant(1);
                     if (rightConst.isOne()) return left;
                     break;
-                case "/":
+                case PostfixProgram.DIV:
                     if (rightConst.isOne()) return left;
                     break;
             }
@@ -245,15 +403,15 @@ public final class BinaryOp extends Expr {
         if (left instanceof Constant) {
             Constant leftConst = (Constant) left;
 
-            switch (operator) {
-                case "*":
+            switch (opcode) {
+                case PostfixProgram.MUL:
                     if (leftConst.isZero()) return new Constant(0);
                     if (leftConst.isOne()) return right;
                     break;
-                case "+":
+                case PostfixProgram.ADD:
                     if (leftConst.isZero()) return right;
                     break;
-                case "^":
+                case PostfixProgram.POW:
                     if (leftConst.isZero()) return new Constant(0);
                     if (leftConst.isOne()) return new Constant(1);
                     break;
@@ -261,58 +419,59 @@ public final class BinaryOp extends Expr {
         }
 
         if (left.equals(right)) {
-            switch (operator) {
-                case "-":
+            switch (opcode) {
+                case PostfixProgram.SUB:
                     return new Constant(0);
-                case "/":
+                case PostfixProgram.DIV:
                     return new Constant(1);
             }
         }
 
-        return new BinaryOp(operator, left, right);
+        return new BinaryOp(opcode, left, right);
     }
 
-    private boolean needsParentheses(
-        Expr expr,
-        String parentOp,
-        boolean isLeft
-    ) {
+    boolean needsParentheses(Expr expr, boolean isLeft) {
         if (!(expr instanceof BinaryOp)) {
             return false;
         }
 
         BinaryOp childOp = (BinaryOp) expr;
-        int parentPrec = getOperatorPrecedence(parentOp);
-        int childPrec = getOperatorPrecedence(childOp.operator);
+        int parentPrec = getOperatorPrecedence(opcode);
+        int childPrec = getOperatorPrecedence(childOp.opcode);
 
         if (childPrec < parentPrec) {
             return true;
         }
 
-        if (childPrec == parentPrec && !isLeft) {
-            return !isLeftAssociative(parentOp);
+        if (childPrec == parentPrec) {
+            // a - (b + c), a / (b * c) and (a ^ b) ^ c keep their grouping
+            return isLeft
+                ? !isLeftAssociative(opcode)
+                : !isLeftAssociative(opcode) ||
+                  opcode == PostfixProgram.SUB ||
+                  opcode == PostfixProgram.DIV;
         }
 
         return false;
     }
 
-    private static int getOperatorPrecedence(String op) {
-        switch (op) {
-            case "+":
-            case "-":
+    private static int getOperatorPrecedence(int opcode) {
+        switch (opcode) {
+            case PostfixProgram.ADD:
+            case PostfixProgram.SUB:
                 return 1;
-            case "*":
-            case "/":
+            case PostfixProgram.MUL:
+            case PostfixProgram.DIV:
                 return 2;
-            case "^":
+            case PostfixProgram.POW:
                 return 3;
             default:
                 return 0;
         }
     }
 
-    private static boolean isLeftAssociative(String op) {
-        return !op.equals("^");
+    private static boolean isLeftAssociative(int opcode) {
+        return opcode != PostfixProgram.POW;
     }
 
     /**
@@ -321,7 +480,7 @@ public final class BinaryOp extends Expr {
      * @return true if the operation is commutative
      */
     public boolean isCommutative() {
-        return "+".equals(operator) || "*".equals(operator);
+        return opcode == PostfixProgram.ADD || opcode == PostfixProgram.MUL;
     }
 
     /**
@@ -330,7 +489,7 @@ public final class BinaryOp extends Expr {
      * @return true if the operation is associative
      */
     public boolean isAssociative() {
-        return "+".equals(operator) || "*".equals(operator);
+        return opcode == PostfixProgram.ADD || opcode == PostfixProgram.MUL;
     }
 
     /**
@@ -339,6 +498,6 @@ public final class BinaryOp extends Expr {
      * @return precedence level (higher number = higher precedence)
      */
     public int getPrecedence() {
-        return getOperatorPrecedence(operator);
+        return getOperatorPrecedence(opcode);
     }
 }
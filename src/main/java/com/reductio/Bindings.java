@@ -0,0 +1,200 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reusable variable bindings with integer slots.
+ *
+ * <p>Each variable name is resolved to a slot once, when an expression is
+ * parsed with {@link Parser#parse(String, Bindings)} or bound with
+ * {@link Expr#bind(Bindings)}. Evaluation then reads the primitive value
+ * array directly, with no boxing and no string hashing:
+ *
+ * <pre>{@code
+ * Bindings vars = new Bindings("x", "y");
+ * Expr expr = Parser.parse("3x^2 + y", vars);
+ * int x = vars.slotOf("x");
+ * for (double value : inputs) {
+ *     vars.set(x, value);
+ *     total += expr.evaluate(vars);
+ * }
+ * }</pre>
+ *
+ * <p>Bindings are not thread-safe; use one instance per thread.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class Bindings {
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private double[] values;
+
+    /**
+     * Creates bindings with the given variables in slots 0, 1, 2, ...
+     *
+     * @param variableNames the variable names, in slot order
+     */
+    public Bindings(String... variableNames) {
+        this.values = new double[Math.max(variableNames.length, 4)];
+        for (String name : variableNames) {
+            resolve(name);
+        }
+    }
+
+    /**
+     * Creates bindings for every variable of an expression, in order of
+     * first appearance.
+     *
+     * @param expr the expression
+     * @return new bindings (all values zero)
+     */
+    public static Bindings of(Expr expr) {
+        Bindings bindings = new Bindings();
+        collect(expr, bindings);
+        return bindings;
+    }
+
+    /** Walks the tree with an explicit stack, so deep trees are fine. */
+    private static void collect(Expr expr, Bindings bindings) {
+        List<Expr> pending = new ArrayList<>();
+        pending.add(expr);
+        while (!pending.isEmpty()) {
+            Expr node = pending.remove(pending.size() - 1);
+            if (node instanceof Variable) {
+                bindings.resolve(((Variable) node).getName());
+            } else if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                pending.add(binOp.getRight());
+                pending.add(binOp.getLeft());
+            } else if (node instanceof FunctionExpr) {
+                pending.add(((FunctionExpr) node).getArg());
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a variable, assigning the next free slot if the
+     * name is new.
+     *
+     * @param name the variable name
+     * @return the slot index
+     */
+    public int resolve(String name) {
+        Objects.requireNonNull(name, "Variable name cannot be null");
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        int created = names.size();
+        if (created == values.length) {
+            values = Arrays.copyOf(values, created * 2);
+        }
+        slots.put(name, created);
+        names.add(name);
+        return created;
+    }
+
+    /**
+     * Gets the slot of a variable.
+     *
+     * @param name the variable name
+     * @return the slot index, or -1 if the name is not bound
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Gets the number of bound variables.
+     *
+     * @return the number of slots in use
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Gets the variable names indexed by slot.
+     *
+     * @return immutable view of the names
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Sets the value of a slot.
+     *
+     * @param slot the slot index
+     * @param value the new value
+     * @return this bindings object
+     * @throws IndexOutOfBoundsException if the slot is not in use
+     */
+    public Bindings set(int slot, double value) {
+        values[Objects.checkIndex(slot, names.size())] = value;
+        return this;
+    }
+
+    /**
+     * Sets the value of a variable by name. Prefer {@link #set(int, double)}
+     * in loops.
+     *
+     * @param name the variable name
+     * @param value the new value
+     * @return this bindings object
+     * @throws IllegalArgumentException if the name is not bound
+     */
+    public Bindings set(String name, double value) {
+        int slot = slotOf(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException(
+                "Variable '" + name + "' is not bound"
+            );
+        }
+        values[slot] = value;
+        return this;
+    }
+
+    /**
+     * Gets the value of a slot.
+     *
+     * @param slot the slot index
+     * @return the current value
+     * @throws IndexOutOfBoundsException if the slot is not in use
+     */
+    public double get(int slot) {
+        return values[Objects.checkIndex(slot, names.size())];
+    }
+
+    /**
+     * Gets the backing value array, indexed by slot. It may be longer than
+     * {@link #size()} and is replaced when new names are resolved.
+     *
+     * @return the value array
+     */
+    public double[] values() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Bindings{");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(names.get(i)).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,300 @@
+package com.reductio;
+
+/**
+ * Primitive loops used by {@link BatchEvaluator}, one per operator and
+ * operand shape. Each loop covers {@code length} elements; the checks
+ * mirror {@link BinaryOp#evaluate(double[])} and
+ * {@link FunctionExpr#evaluate(double[])}.
+ *
+ * <p>This class holds the portable scalar loops. When the jar runs on
+ * JDK 17+ with {@code --add-modules jdk.incubator.vector}, the
+ * multi-release subclass {@code VectorKernels} replaces the arithmetic
+ * and exactly rounded function loops with Vector API versions. Set the
+ * system property {@code reductio.simd=false} to keep the scalar loops.
+ */
+class BlockKernels {
+
+    static final BlockKernels INSTANCE = load();
+
+    private static BlockKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("reductio.simd", "true"))) {
+            return new BlockKernels();
+        }
+        try {
+            Class<?> type = Class.forName("com.reductio.VectorKernels");
+            return (BlockKernels) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not a JDK 17+ multi-release runtime, or the incubator module
+            // was not added: stay scalar.
+            return new BlockKernels();
+        }
+    }
+
+    /**
+     * Gets a short name of the kernel implementation in use.
+     */
+    String name() {
+        return "scalar";
+    }
+
+    void vectorVector(
+        String op,
+        double[] a,
+        int aOffset,
+        double[] b,
+        int bOffset,
+        double[] dest,
+        int length
+    ) {
+        switch (op) {
+            case "+":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] + b[bOffset + i];
+                }
+                break;
+            case "-":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] - b[bOffset + i];
+                }
+                break;
+            case "*":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] * b[bOffset + i];
+                }
+                break;
+            case "/":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = CompiledExpr.divide(a[aOffset + i], b[bOffset + i]);
+                }
+                break;
+            case "^":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.pow(a[aOffset + i], b[bOffset + i]);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operator: " + op);
+        }
+    }
+
+    void vectorScalar(
+        String op,
+        double[] a,
+        int aOffset,
+        double b,
+        double[] dest,
+        int length
+    ) {
+        switch (op) {
+            case "+":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] + b;
+                }
+                break;
+            case "-":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] - b;
+                }
+                break;
+            case "*":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] * b;
+                }
+                break;
+            case "/":
+                if (Math.abs(b) < 1e-10) {
+                    if (length > 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    break;
+                }
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a[aOffset + i] / b;
+                }
+                break;
+            case "^":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.pow(a[aOffset + i], b);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operator: " + op);
+        }
+    }
+
+    void scalarVector(
+        String op,
+        double a,
+        double[] b,
+        int bOffset,
+        double[] dest,
+        int length
+    ) {
+        switch (op) {
+            case "+":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a + b[bOffset + i];
+                }
+                break;
+            case "-":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a - b[bOffset + i];
+                }
+                break;
+            case "*":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = a * b[bOffset + i];
+                }
+                break;
+            case "/":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = CompiledExpr.divide(a, b[bOffset + i]);
+                }
+                break;
+            case "^":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.pow(a, b[bOffset + i]);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operator: " + op);
+        }
+    }
+
+    void function(
+        String name,
+        double[] arg,
+        int offset,
+        double[] dest,
+        int length
+    ) {
+        switch (name) {
+            case "sin":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.sin(arg[offset + i]);
+                }
+                break;
+            case "cos":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.cos(arg[offset + i]);
+                }
+                break;
+            case "tan":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.tan(arg[offset + i]);
+                }
+                break;
+            case "ln":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = CompiledExpr.ln(arg[offset + i]);
+                }
+                break;
+            case "log":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = CompiledExpr.log(arg[offset + i]);
+                }
+                break;
+            case "exp":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.exp(arg[offset + i]);
+                }
+                break;
+            case "sqrt":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = CompiledExpr.sqrt(arg[offset + i]);
+                }
+                break;
+            case "abs":
+                for (int i = 0; i < length; i++) {
+                    dest[i] = Math.abs(arg[offset + i]);
+                }
+                break;
+            default:
+                if (length > 0) {
+                    FunctionRegistry.Definition definition =
+                        FunctionRegistry.of(name);
+                    for (int i = 0; i < length; i++) {
+                        dest[i] = definition.apply(arg[offset + i]);
+                    }
+                }
+        }
+    }
+
+    /**
+     * Divides like {@link #vectorVector} without throwing: rows whose
+     * divisor fails the division by zero check get NaN and the
+     * {@link EvaluationStatus#DIVISION_BY_ZERO} flag. {@code a} may be
+     * {@code dest}.
+     */
+    void divideOrNaN(
+        double[] a,
+        int aOffset,
+        double[] b,
+        int bOffset,
+        double[] dest,
+        int length,
+        byte[] status
+    ) {
+        for (int i = 0; i < length; i++) {
+            double divisor = b[bOffset + i];
+            if (Math.abs(divisor) < 1e-10) {
+                dest[i] = Double.NaN;
+                status[i] |= EvaluationStatus.DIVISION_BY_ZERO;
+            } else {
+                dest[i] = a[aOffset + i] / divisor;
+            }
+        }
+    }
+
+    /**
+     * Runs a function loop like {@link #function} without throwing: rows
+     * outside the domain of {@code ln}, {@code log} or {@code sqrt} get NaN
+     * and the {@link EvaluationStatus#DOMAIN_ERROR} flag.
+     */
+    void functionOrNaN(
+        String name,
+        double[] arg,
+        int offset,
+        double[] dest,
+        int length,
+        byte[] status
+    ) {
+        switch (name) {
+            case "ln":
+                for (int i = 0; i < length; i++) {
+                    double value = arg[offset + i];
+                    if (value <= 0) {
+                        dest[i] = Double.NaN;
+                        status[i] |= EvaluationStatus.DOMAIN_ERROR;
+                    } else {
+                        dest[i] = Math.log(value);
+                    }
+                }
+                break;
+            case "log":
+                for (int i = 0; i < length; i++) {
+                    double value = arg[offset + i];
+                    if (value <= 0) {
+                        dest[i] = Double.NaN;
+                        status[i] |= EvaluationStatus.DOMAIN_ERROR;
+                    } else {
+                        dest[i] = Math.log10(value);
+                    }
+                }
+                break;
+            case "sqrt":
+                for (int i = 0; i < length; i++) {
+                    double value = arg[offset + i];
+                    if (value < 0) {
+                        dest[i] = Double.NaN;
+                        status[i] |= EvaluationStatus.DOMAIN_ERROR;
+                    } else {
+                        dest[i] = Math.sqrt(value);
+                    }
+                }
+                break;
+            default:
+                function(name, arg, offset, dest, length);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Canonical form of sums and products, with like terms collected.
+ *
+ * <p>Chains of {@code +} and {@code -} are flattened into one n-ary sum, and
+ * chains of {@code *} and {@code /} into one n-ary product, whatever their
+ * nesting. A product keeps a numeric coefficient and, per base, the sum of
+ * its constant exponents; a sum keeps a constant and, per monomial, the sum
+ * of its coefficients. Both are hash maps keyed by the rebuilt trees, whose
+ * hash codes are cached, so a {@code k}-term sum is collected in one pass
+ * and only the sort of the surviving terms costs {@code O(k log k)}:
+ *
+ * <pre>{@code
+ * Parser.parse("2x + 3y - 5x + 7 - 2y").canonicalize(); // -3 * x + y + 7
+ * Parser.parse("x * y * x / y").canonicalize(); // x ^ 2
+ * Parser.parse("x / y / z").canonicalize(); // x / y / z
+ * }</pre>
+ *
+ * <p>Terms are emitted by decreasing degree, then in the order of their
+ * printed form, with the constant last; factors are emitted in printed
+ * order. A base the source divided by, and whose exponent was not changed
+ * since, is emitted as a divisor again; every other negative exponent is
+ * emitted as a power, such as {@code x ^ -2} for {@code x / x / x ^ 2}, since
+ * dividing by a value the source never divided by could fail the division
+ * by zero check where the source does not. A constant factor
+ * scales every term of a sum it multiplies, but products of sums are not
+ * expanded, and only integer powers of products are distributed, since
+ * {@code (x ^ 2) ^ 0.5} is not {@code x}. Like the simplification rules of
+ * {@link BinaryOp}, the form assumes the expression is defined: {@code x / x}
+ * becomes {@code 1} and {@code x * 0} becomes {@code 0}, and division by a
+ * zero constant is left in place.
+ */
+final class CanonicalForm {
+
+    private static final Comparator<Term> TERM_ORDER =
+        Comparator.comparingDouble((Term term) -> -term.degree)
+            .thenComparing(term -> term.text)
+            .thenComparingLong(term -> term.monomial.fingerprint());
+
+    private static final Comparator<Factor> FACTOR_ORDER =
+        Comparator.comparing((Factor factor) -> factor.text)
+            .thenComparingLong(factor -> factor.base.fingerprint());
+
+    private static final int FACTOR = 0;
+    private static final int DIVIDED = 1;
+    private static final int DIVISOR = 2;
+
+    private CanonicalForm() {}
+
+    /** Returns the canonical form of an expression. */
+    static Expr canonicalize(Expr expr) {
+        return sum(expr).build();
+    }
+
+    /** Collects the terms of a chain of {@code +} and {@code -}. */
+    private static Sum sum(Expr node) {
+        Sum sum = new Sum();
+        List<Expr> pending = new ArrayList<>();
+        List<Double> signs = new ArrayList<>();
+        pending.add(node);
+        signs.add(1.0);
+        while (!pending.isEmpty()) {
+            int last = pending.size() - 1;
+            Expr operand = pending.remove(last);
+            double sign = signs.remove(last);
+            int opcode = opcode(operand);
+            if (opcode == PostfixProgram.ADD || opcode == PostfixProgram.SUB) {
+                BinaryOp binOp = (BinaryOp) operand;
+                pending.add(binOp.getRight());
+                signs.add(opcode == PostfixProgram.ADD ? sign : -sign);
+                pending.add(binOp.getLeft());
+                signs.add(sign);
+            } else {
+                sum.add(product(operand), sign);
+            }
+        }
+        return sum;
+    }
+
+    /** Collects the factors of a chain of {@code *} and {@code /}. */
+    private static Product product(Expr node) {
+        Product product = new Product();
+        List<Expr> pending = new ArrayList<>();
+        // Operand states: multiplied, divided, or the very divisor of a /
+        List<Integer> states = new ArrayList<>();
+        pending.add(node);
+        states.add(FACTOR);
+        while (!pending.isEmpty()) {
+            int last = pending.size() - 1;
+            Expr operand = pending.remove(last);
+            int state = states.remove(last);
+            int opcode = opcode(operand);
+            if (opcode == PostfixProgram.MUL || opcode == PostfixProgram.DIV) {
+                BinaryOp binOp = (BinaryOp) operand;
+                boolean divided = state != FACTOR;
+                pending.add(binOp.getRight());
+                if (opcode == PostfixProgram.MUL) {
+                    states.add(divided ? DIVIDED : FACTOR);
+                } else {
+                    states.add(divided ? FACTOR : DIVISOR);
+                }
+                pending.add(binOp.getLeft());
+                states.add(divided ? DIVIDED : FACTOR);
+            } else {
+                product.multiply(
+                    factor(operand),
+                    state == FACTOR ? 1 : -1,
+                    state == DIVISOR
+                );
+            }
+        }
+        return product;
+    }
+
+    /** Canonical form of an operand that is neither a sum nor a product. */
+    private static Product factor(Expr node) {
+        if (node instanceof Constant) {
+            return Product.of(((Constant) node).getValue());
+        }
+        int opcode = opcode(node);
+        if (opcode == PostfixProgram.ADD || opcode == PostfixProgram.SUB) {
+            return sum(node).toProduct();
+        }
+        if (opcode == PostfixProgram.POW) {
+            BinaryOp binOp = (BinaryOp) node;
+            return power(sum(binOp.getLeft()), sum(binOp.getRight()));
+        }
+        if (node instanceof FunctionExpr) {
+            FunctionExpr function = (FunctionExpr) node;
+            FunctionExpr call = new FunctionExpr(
+                function,
+                canonicalize(function.getArg())
+            );
+            Expr result = FunctionRegistry.simplify(call);
+            return result == null ? Product.of(call, null) : factor(result);
+        }
+        return Product.of(node, null);
+    }
+
+    private static Product power(Sum base, Sum exponent) {
+        Product product = base.toProduct();
+        if (!exponent.terms.isEmpty()) {
+            if (product.factors.isEmpty() && product.coefficient == 1) {
+                return product; // 1 ^ x
+            }
+            Expr power = new BinaryOp(
+                PostfixProgram.POW,
+                base.build(),
+                exponent.build()
+            );
+            return Product.of(power, null);
+        }
+        double n = exponent.constant;
+        if (product.factors.isEmpty()) {
+            return Product.of(Math.pow(product.coefficient, n));
+        }
+        if (n == 0) {
+            return Product.of(1);
+        }
+        if (n != Math.rint(n)) {
+            Expr root = base.build();
+            Product result = new Product();
+            result.factors.put(root, new Factor(root, null, n));
+            return result;
+        }
+        Product raised = Product.of(Math.pow(product.coefficient, n));
+        for (Factor factor : product.factors.values()) {
+            raised.factors.put(
+                factor.base,
+                factor.withExponent(factor.exponent * n)
+            );
+        }
+        return raised;
+    }
+
+    private static int opcode(Expr node) {
+        return node instanceof BinaryOp
+            ? ((BinaryOp) node).getOpcode()
+            : PostfixProgram.UNKNOWN;
+    }
+
+    /** Sum of a constant and of monomials with their coefficients. */
+    private static final class Sum {
+
+        double constant;
+        final Map<Expr, Term> terms = new HashMap<>();
+
+        /** Adds a product scaled by a factor, gathering like terms. */
+        void add(Product product, double scale) {
+            double coefficient = product.coefficient * scale;
+            if (product.factors.isEmpty()) {
+                constant += coefficient;
+                return;
+            }
+            if (product.factors.size() == 1) {
+                Factor factor = product.factors.values().iterator().next();
+                if (factor.sum != null && factor.exponent == 1) {
+                    // c * (a + b) joins the enclosing sum as c * a + c * b
+                    constant += coefficient * factor.sum.constant;
+                    for (Term term : factor.sum.terms.values()) {
+                        add(term, coefficient * term.coefficient);
+                    }
+                    return;
+                }
+            }
+            add(new Term(product.factors), coefficient);
+        }
+
+        private void add(Term term, double coefficient) {
+            Term like = terms.get(term.monomial);
+            if (like == null) {
+                like = new Term(term);
+                terms.put(like.monomial, like);
+            }
+            like.coefficient += coefficient;
+            if (like.coefficient == 0) {
+                terms.remove(like.monomial);
+            }
+        }
+
+        /** Wraps the sum as a product, a single factor unless it is one. */
+        Product toProduct() {
+            if (terms.isEmpty()) {
+                return Product.of(constant);
+            }
+            if (constant == 0 && terms.size() == 1) {
+                Term term = terms.values().iterator().next();
+                Product product = new Product();
+                product.coefficient = term.coefficient;
+                product.factors.putAll(term.factors);
+                return product;
+            }
+            return Product.of(build(), this);
+        }
+
+        Expr build() {
+            List<Term> sorted = new ArrayList<>(terms.values());
+            sorted.sort(TERM_ORDER);
+
+            Expr result = null;
+            for (Term term : sorted) {
+                if (result == null) {
+                    result = Product.build(term.coefficient, term.factors);
+                } else if (term.coefficient < 0) {
+                    result = new BinaryOp(
+                        PostfixProgram.SUB,
+                        result,
+                        Product.build(-term.coefficient, term.factors)
+                    );
+                } else {
+                    result = new BinaryOp(
+                        PostfixProgram.ADD,
+                        result,
+                        Product.build(term.coefficient, term.factors)
+                    );
+                }
+            }
+            if (result == null) {
+                return new Constant(constant);
+            }
+            if (constant < 0) {
+                return new BinaryOp(
+                    PostfixProgram.SUB,
+                    result,
+                    new Constant(-constant)
+                );
+            }
+            return constant == 0
+                ? result
+                : new BinaryOp(
+                    PostfixProgram.ADD,
+                    result,
+                    new Constant(constant)
+                );
+        }
+    }
+
+    /** Numeric coefficient times powers of distinct bases. */
+    private static final class Product {
+
+        double coefficient = 1;
+        final Map<Expr, Factor> factors = new HashMap<>();
+
+        static Product of(double coefficient) {
+            Product product = new Product();
+            product.coefficient = coefficient;
+            return product;
+        }
+
+        /** A single base; {@code sum} is its canonical sum, if it is one. */
+        static Product of(Expr base, Sum sum) {
+            Product product = new Product();
+            product.factors.put(base, new Factor(base, sum, 1));
+            return product;
+        }
+
+        /**
+         * Multiplies by a product, or divides by it if sign is -1. A
+         * divisor is the right operand of a {@code /} in the source; if it
+         * stays a single base it is emitted as a division again, and any
+         * other negative exponent as a power, so that no division by a
+         * value the source never divided by can fail the zero check.
+         */
+        void multiply(Product other, int sign, boolean divisor) {
+            boolean zero = divisor ? isZero(other) : other.coefficient == 0;
+            if (sign < 0 && zero) {
+                // Division by zero is left in place, as in BinaryOp; a tiny
+                // constant the source only divided by through a quotient
+                // (y / (1e-11 / x)) scales the coefficient instead
+                Expr base = build(other.coefficient, other.factors);
+                Factor like = factors.get(base);
+                double exponent = like == null ? -1 : like.exponent - 1;
+                factors.put(
+                    base,
+                    new Factor(base, null, exponent).asDivisor()
+                );
+                return;
+            }
+            if (
+                divisor &&
+                other.coefficient == 1 &&
+                other.factors.size() == 1
+            ) {
+                Factor factor = other.factors.values().iterator().next();
+                if (factor.exponent == 1 && !factors.containsKey(factor.base)) {
+                    factors.put(
+                        factor.base,
+                        factor.withExponent(-1).asDivisor()
+                    );
+                    return;
+                }
+            }
+            coefficient = sign < 0
+                ? coefficient / other.coefficient
+                : coefficient * other.coefficient;
+            for (Factor factor : other.factors.values()) {
+                Factor like = factors.get(factor.base);
+                double exponent = sign * factor.exponent;
+                if (like != null) {
+                    exponent += like.exponent;
+                }
+                if (exponent == 0) {
+                    factors.remove(factor.base);
+                } else {
+                    factors.put(factor.base, factor.withExponent(exponent));
+                }
+            }
+        }
+
+        /** A constant too small to divide by, or a product with a zero. */
+        private static boolean isZero(Product product) {
+            return product.factors.isEmpty()
+                ? Math.abs(product.coefficient) < 1e-10
+                : product.coefficient == 0;
+        }
+
+        /** Builds {@code coefficient * numerator / divisors}. */
+        static Expr build(double coefficient, Map<Expr, Factor> factors) {
+            return build(coefficient, factors, true);
+        }
+
+        /**
+         * Builds the product; without divisions, divisors are emitted as
+         * powers too, so the shape does not depend on how the source wrote
+         * them, as like-term keys need.
+         */
+        static Expr build(
+            double coefficient,
+            Map<Expr, Factor> factors,
+            boolean divisions
+        ) {
+            if (coefficient == 0) {
+                return new Constant(0);
+            }
+            List<Factor> sorted = new ArrayList<>(factors.values());
+            sorted.sort(FACTOR_ORDER);
+
+            Expr result = coefficient == 1 ? null : new Constant(coefficient);
+            for (Factor factor : sorted) {
+                if (!(divisions && factor.divisor)) {
+                    Expr power = factor.power(factor.exponent);
+                    result = result == null
+                        ? power
+                        : new BinaryOp(PostfixProgram.MUL, result, power);
+                }
+            }
+            if (result == null) {
+                result = new Constant(1);
+            }
+            for (Factor factor : sorted) {
+                if (divisions && factor.divisor) {
+                    result = new BinaryOp(
+                        PostfixProgram.DIV,
+                        result,
+                        factor.power(-factor.exponent)
+                    );
+                }
+            }
+            return result;
+        }
+    }
+
+    /** A base with its exponent in a product. */
+    private static final class Factor {
+
+        final Expr base;
+        final Sum sum;
+        final double exponent;
+        final String text;
+        final boolean divisor;
+
+        Factor(Expr base, Sum sum, double exponent) {
+            this(base, sum, exponent, base.show(), false);
+        }
+
+        private Factor(
+            Expr base,
+            Sum sum,
+            double exponent,
+            String text,
+            boolean divisor
+        ) {
+            this.base = base;
+            this.sum = sum;
+            this.exponent = exponent;
+            this.text = text;
+            this.divisor = divisor;
+        }
+
+        /** The same factor with another exponent, emitted as a power. */
+        Factor withExponent(double exponent) {
+            return new Factor(base, sum, exponent, text, false);
+        }
+
+        /** The same factor emitted as {@code / base}, its exponent -1. */
+        Factor asDivisor() {
+            return new Factor(base, sum, exponent, text, true);
+        }
+
+        Expr power(double exponent) {
+            if (exponent == 1) {
+                return base;
+            }
+            if (base instanceof Constant) {
+                // A divisor too small to divide by, raised
+                double value = ((Constant) base).getValue();
+                return new Constant(Math.pow(value, exponent));
+            }
+            return new BinaryOp(
+                PostfixProgram.POW,
+                base,
+                new Constant(exponent)
+            );
+        }
+    }
+
+    /** A monomial of a sum, keyed by its tree without coefficient. */
+    private static final class Term {
+
+        final Map<Expr, Factor> factors;
+        final Expr monomial;
+        final double degree;
+        final String text;
+        double coefficient;
+
+        Term(Map<Expr, Factor> factors) {
+            this.factors = factors;
+            this.monomial = Product.build(1, factors, false);
+            double degree = 0;
+            for (Factor factor : factors.values()) {
+                degree += factor.exponent;
+            }
+            this.degree = degree;
+            this.text = monomial.show();
+        }
+
+        /** A copy with no coefficient yet, owned by the sum it joins. */
+        Term(Term term) {
+            this.factors = term.factors;
+            this.monomial = term.monomial;
+            this.degree = term.degree;
+            this.text = term.text;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.reductio;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Common subexpression elimination.
+ *
+ * <p>{@link #share(Expr)} rebuilds a tree bottom-up so that structurally
+ * equal subtrees become one shared instance, turning the tree into a DAG.
+ * Children are canonicalized first, so two nodes are equal exactly when
+ * their operator (or function name) matches and their children are the
+ * same instances; leaves are compared with {@link Expr#equals(Object)}.
+ * This gives the same result as comparing whole subtrees with
+ * {@code equals}, in time linear in the size of the tree.
+ *
+ * <p>{@link #temporaries(Expr)} then finds the nodes of a DAG that are
+ * reached more than once. Evaluators compute such a node once per row,
+ * keep it in a temporary and reuse it for the other references.
+ */
+final class CommonSubexpressions {
+
+    private final Map<Key, Expr> canonical = new HashMap<>();
+
+    private CommonSubexpressions() {}
+
+    /**
+     * Returns an equal expression in which equal subtrees are shared.
+     * Unchanged subtrees are reused, so a tree without repetitions is
+     * returned as is.
+     */
+    static Expr share(Expr expr) {
+        return new CommonSubexpressions().canonicalize(expr);
+    }
+
+    /**
+     * Numbers the operator and function nodes reached through more than
+     * one path, in the order a left-to-right evaluation first computes
+     * them.
+     *
+     * @return temporary index by node identity; empty for a tree
+     */
+    static Map<Expr, Integer> temporaries(Expr dag) {
+        Map<Expr, Integer> references = new IdentityHashMap<>();
+        countReferences(dag, references);
+
+        Map<Expr, Integer> temporaries = new IdentityHashMap<>();
+        number(dag, references, temporaries);
+        return temporaries;
+    }
+
+    private Expr canonicalize(Expr node) {
+        Key key;
+        Expr candidate;
+        if (node instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) node;
+            Expr left = canonicalize(binOp.getLeft());
+            Expr right = canonicalize(binOp.getRight());
+            key = new Key(binOp.getOperator(), left, right);
+            candidate = left == binOp.getLeft() && right == binOp.getRight()
+                ? node
+                : new BinaryOp(binOp.getOpcode(), left, right);
+        } else if (node.getClass() == FunctionExpr.class) {
+            FunctionExpr function = (FunctionExpr) node;
+            Expr arg = canonicalize(function.getArg());
+            key = new Key(function.getName(), arg, null);
+            candidate = arg == function.getArg()
+                ? node
+                : new FunctionExpr(function, arg);
+        } else if (node instanceof Constant || node instanceof Variable) {
+            key = new Key(node);
+            candidate = node;
+        } else {
+            // Unknown node types are never shared.
+            return node;
+        }
+
+        Expr existing = canonical.putIfAbsent(key, candidate);
+        return existing != null ? existing : candidate;
+    }
+
+    private static void countReferences(
+        Expr node,
+        Map<Expr, Integer> references
+    ) {
+        if (references.merge(node, 1, Integer::sum) > 1) {
+            return; // children already counted
+        }
+        if (node instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) node;
+            countReferences(binOp.getLeft(), references);
+            countReferences(binOp.getRight(), references);
+        } else if (node instanceof FunctionExpr) {
+            countReferences(((FunctionExpr) node).getArg(), references);
+        }
+    }
+
+    private static void number(
+        Expr node,
+        Map<Expr, Integer> references,
+        Map<Expr, Integer> temporaries
+    ) {
+        if (temporaries.containsKey(node)) {
+            return;
+        }
+        if (node instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) node;
+            number(binOp.getLeft(), references, temporaries);
+            number(binOp.getRight(), references, temporaries);
+        } else if (node instanceof FunctionExpr) {
+            number(((FunctionExpr) node).getArg(), references, temporaries);
+        } else {
+            return; // leaves are as cheap to reload as a temporary
+        }
+        if (references.get(node) > 1) {
+            temporaries.put(node, temporaries.size());
+        }
+    }
+
+    /**
+     * A node with canonical children, compared by child identity.
+     */
+    private static final class Key {
+
+        private final Object label;
+        private final Expr first;
+        private final Expr second;
+
+        /** Leaf key, compared with equals. */
+        Key(Expr leaf) {
+            this(leaf, null, null);
+        }
+
+        Key(Object label, Expr first, Expr second) {
+            this.label = label;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return (
+                label.equals(other.label) &&
+                first == other.first &&
+                second == other.second
+            );
+        }
+
+        @Override
+        public int hashCode() {
+            return (
+                31 * 31 * label.hashCode() +
+                31 * System.identityHashCode(first) +
+                System.identityHashCode(second)
+            );
+        }
+    }
+}
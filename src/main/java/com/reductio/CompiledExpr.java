@@ -0,0 +1,158 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * An expression compiled to JVM bytecode.
+ *
+ * <p>Instances are produced by {@link Expr#compile()}. Variables are read
+ * positionally from a {@code double[]} in the order given by
+ * {@link #getVariables()}; expressions with at most one variable can also
+ * be called as a plain {@link DoubleUnaryOperator}. Results and exceptions
+ * match {@link Expr#evaluate(Map)} on the source tree, except that
+ * {@code x ^ n} for an integer constant {@code n} up to 8 is done by
+ * multiplications (within {@code n - 1} ulp), division by a constant as
+ * multiplication by its reciprocal (within 2 ulp), {@code Math.E ^ x} as
+ * {@code exp(x)} (within {@code 1 + |x| / 2} ulp) and {@code sqrt(x * x)}
+ * as {@code abs(x)} (which does not overflow).
+ *
+ * <p>Compiled expressions are immutable and thread-safe.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public abstract class CompiledExpr
+    implements DoubleUnaryOperator, ToDoubleFunction<double[]> {
+
+    private final Expr source;
+    private final List<String> variables;
+
+    CompiledExpr(Expr source, List<String> variables) {
+        this.source = source;
+        this.variables = Collections.unmodifiableList(
+            new ArrayList<>(variables)
+        );
+    }
+
+    /**
+     * Gets the expression this evaluator was compiled from.
+     *
+     * @return the source expression
+     */
+    public final Expr getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the variable names in the order they are read from the input
+     * array: the slot order of the bindings used to compile, which for
+     * {@link Expr#compile()} is the order of first appearance.
+     *
+     * @return immutable list of variable names
+     */
+    public final List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Evaluates the expression with positional variable values.
+     *
+     * @param values variable values, ordered as {@link #getVariables()}
+     * @return the evaluated result
+     * @throws ArrayIndexOutOfBoundsException if values is too short
+     */
+    @Override
+    public abstract double applyAsDouble(double[] values);
+
+    /**
+     * Evaluates an expression of at most one variable.
+     *
+     * @param value the value of the single variable (ignored if none)
+     * @return the evaluated result
+     * @throws IllegalStateException if the expression has several variables
+     */
+    @Override
+    public double applyAsDouble(double value) {
+        if (variables.size() > 1) {
+            throw new IllegalStateException(
+                "Expression has " + variables.size() + " variables"
+            );
+        }
+        return applyAsDouble(new double[] { value });
+    }
+
+    /**
+     * Evaluates the expression for given variable values.
+     *
+     * @param values map of variable names to values
+     * @return the evaluated result
+     * @throws IllegalArgumentException if required variables are missing
+     */
+    public double evaluate(Map<String, Double> values) {
+        double[] positional = new double[variables.size()];
+        for (int i = 0; i < positional.length; i++) {
+            String name = variables.get(i);
+            Double value = values == null ? null : values.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException(
+                    "Value for variable '" + name + "' not provided"
+                );
+            }
+            positional[i] = value;
+        }
+        return applyAsDouble(positional);
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledExpr[" + source.show() + "]";
+    }
+
+    // Helpers called from generated code; they keep the checks of
+    // BinaryOp.evaluate and FunctionExpr.evaluate out of the bytecode.
+
+    static double divide(double left, double right) {
+        if (Math.abs(right) < 1e-10) {
+            throw new ArithmeticException("Division by zero");
+        }
+        return left / right;
+    }
+
+    static double ln(double value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("ln argument must be positive");
+        }
+        return Math.log(value);
+    }
+
+    static double log(double value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(
+                "log argument must be positive"
+            );
+        }
+        return Math.log10(value);
+    }
+
+    static double sqrt(double value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(
+                "sqrt argument must be non-negative"
+            );
+        }
+        return Math.sqrt(value);
+    }
+
+    /**
+     * Calls a function without an opcode through {@link FunctionRegistry}.
+     */
+    static double registeredFunction(double value, String name) {
+        return FunctionRegistry.of(name).apply(value);
+    }
+}
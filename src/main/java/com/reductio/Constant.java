@@ -1,7 +1,6 @@
 package com.reductio;
 
 import java.util.Map;
-import java.util.Objects;
 
 /**
  * Represents a constant numerical value in mathematical expressions.
@@ -13,6 +12,7 @@ import java.util.Objects;
 public final class Constant extends Expr {
 
     private final double value;
+    private final long fingerprint;
 
     /**
      * Creates a new constant with the specified value.
@@ -21,6 +21,10 @@ public final class Constant extends Expr {
      */
     public Constant(double value) {
         this.value = value;
+        this.fingerprint = mix(
+            PostfixProgram.CONST,
+            Double.doubleToLongBits(value)
+        );
     }
 
     /**
@@ -58,9 +62,14 @@ public final class Constant extends Expr {
         return value;
     }
 
+    @Override
+    public double evaluate(double[] values) {
+        return value;
+    }
+
     @Override
     public Expr copy() {
-        return new Constant(value);
+        return this;
     }
 
     @Override
@@ -73,7 +82,12 @@ public final class Constant extends Expr {
 
     @Override
     public int hashCode() {
-        return Objects.hash(value);
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    public long fingerprint() {
+        return fingerprint;
     }
 
     /**
@@ -0,0 +1,403 @@
+package com.reductio;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Explicit-stack versions of the tree walks, for trees too deep to recurse
+ * over, such as the left-deep chain a generated 50,000-term sum parses to.
+ *
+ * <p>{@link BinaryOp} and {@link FunctionExpr} keep their depth, and hand
+ * over to these walks when it exceeds {@link #RECURSION_LIMIT}, so shallow
+ * trees keep the recursive fast path and deep ones only cost heap. Nodes
+ * are visited in the order the recursive methods visit them, so results,
+ * simplification steps and exceptions are the same. Node types other than
+ * the four built-in ones are handed their own methods, as the recursive
+ * walks do.
+ */
+final class DeepTrees {
+
+    /** Deepest tree the recursive methods walk themselves. */
+    static final int RECURSION_LIMIT = 512;
+
+    /** Node states on the stack: children not pushed yet, or computed. */
+    private static final int VISIT = 0;
+    private static final int APPLY = 1;
+
+    private DeepTrees() {}
+
+    /**
+     * Throws for a tree too deep for a walk that has no explicit-stack
+     * version here, instead of letting it overflow the stack.
+     *
+     * @throws UnsupportedOperationException if the tree is deeper than
+     *         {@link #RECURSION_LIMIT}
+     */
+    static void requireShallow(Expr root, String walk) {
+        if (root.depth() > RECURSION_LIMIT) {
+            throw new UnsupportedOperationException(
+                "Tree of depth " + root.depth() + " is too deep to " + walk +
+                " (limit " + RECURSION_LIMIT + ")"
+            );
+        }
+    }
+
+    /** Mirrors {@link Expr#evaluate(Map)} and {@link Expr#evaluate(double[])}. */
+    static double evaluate(
+        Expr root,
+        Map<String, Double> variables,
+        double[] values
+    ) {
+        Stack pending = new Stack();
+        double[] results = new double[16];
+        int top = 0;
+        pending.push(root, VISIT);
+        while (!pending.isEmpty()) {
+            int state = pending.topState();
+            Expr node = pending.pop();
+            if (state == VISIT) {
+                if (node instanceof BinaryOp) {
+                    BinaryOp binOp = (BinaryOp) node;
+                    pending.push(binOp, APPLY);
+                    pending.push(binOp.getRight(), VISIT);
+                    pending.push(binOp.getLeft(), VISIT);
+                    continue;
+                }
+                if (node instanceof FunctionExpr) {
+                    FunctionExpr function = (FunctionExpr) node;
+                    pending.push(function, APPLY);
+                    pending.push(function.getArg(), VISIT);
+                    continue;
+                }
+                if (top == results.length) {
+                    results = Arrays.copyOf(results, top * 2);
+                }
+                results[top++] = values != null
+                    ? node.evaluate(values)
+                    : node.evaluate(variables);
+            } else if (node instanceof BinaryOp) {
+                top--;
+                results[top - 1] = ((BinaryOp) node).apply(
+                    results[top - 1],
+                    results[top]
+                );
+            } else {
+                results[top - 1] = ((FunctionExpr) node).apply(
+                    results[top - 1]
+                );
+            }
+        }
+        return results[0];
+    }
+
+    /**
+     * Mirrors {@link QuietEvaluation#evaluate(Expr, double[])}. Without a
+     * status array the walk stops at the first failing node; with one it
+     * goes on, like the batch kernels, and ORs the flags of every failing
+     * node into {@code status[row]}. Either way the result is then NaN.
+     */
+    static double evaluateOrNaN(
+        Expr root,
+        double[] values,
+        byte[] status,
+        int row
+    ) {
+        Stack pending = new Stack();
+        double[] results = new double[16];
+        int top = 0;
+        int flags = EvaluationStatus.OK;
+        pending.push(root, VISIT);
+        while (!pending.isEmpty()) {
+            int state = pending.topState();
+            Expr node = pending.pop();
+            int flag = EvaluationStatus.OK;
+            if (state == VISIT) {
+                if (node instanceof BinaryOp) {
+                    BinaryOp binOp = (BinaryOp) node;
+                    pending.push(binOp, APPLY);
+                    pending.push(binOp.getRight(), VISIT);
+                    pending.push(binOp.getLeft(), VISIT);
+                    continue;
+                }
+                if (node.getClass() == FunctionExpr.class) {
+                    pending.push(node, APPLY);
+                    pending.push(((FunctionExpr) node).getArg(), VISIT);
+                    continue;
+                }
+                if (top == results.length) {
+                    results = Arrays.copyOf(results, top * 2);
+                }
+                results[top++] = node.evaluate(values);
+            } else if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                top--;
+                double left = results[top - 1];
+                double right = results[top];
+                if (binOp.getOpcode() == PostfixProgram.DIV) {
+                    flag = EvaluationStatus.divide(right);
+                    results[top - 1] = flag == EvaluationStatus.OK
+                        ? left / right
+                        : Double.NaN;
+                } else {
+                    results[top - 1] = binOp.apply(left, right);
+                }
+            } else {
+                FunctionExpr function = (FunctionExpr) node;
+                double arg = results[top - 1];
+                flag = EvaluationStatus.function(function.getOpcode(), arg);
+                results[top - 1] = flag == EvaluationStatus.OK
+                    ? function.apply(arg)
+                    : Double.NaN;
+            }
+            if (flag != EvaluationStatus.OK) {
+                if (status == null) {
+                    return Double.NaN;
+                }
+                flags |= flag;
+            }
+        }
+        if (status != null) {
+            status[row] |= flags;
+        }
+        return flags == EvaluationStatus.OK ? results[0] : Double.NaN;
+    }
+
+    /** Mirrors {@link Expr#show()}. */
+    static String show(Expr root) {
+        StringBuilder sb = new StringBuilder();
+        // Text still to append: nodes to print, interleaved with literals
+        Object[] pending = new Object[16];
+        int top = 0;
+        pending[top++] = root;
+        while (top > 0) {
+            Object item = pending[--top];
+            pending[top] = null;
+            if (item instanceof String) {
+                sb.append((String) item);
+                continue;
+            }
+            Object[] parts;
+            if (item instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) item;
+                boolean left = binOp.needsParentheses(binOp.getLeft(), true);
+                boolean right = binOp.needsParentheses(binOp.getRight(), false);
+                parts = new Object[] {
+                    left ? "(" : "",
+                    binOp.getLeft(),
+                    (left ? ") " : " ") +
+                    binOp.getOperator() +
+                    (right ? " (" : " "),
+                    binOp.getRight(),
+                    right ? ")" : "",
+                };
+            } else if (item instanceof FunctionExpr) {
+                FunctionExpr function = (FunctionExpr) item;
+                parts = new Object[] {
+                    function.getName() + "(",
+                    function.getArg(),
+                    ")",
+                };
+            } else {
+                sb.append(((Expr) item).show());
+                continue;
+            }
+            if (top + parts.length > pending.length) {
+                pending = Arrays.copyOf(
+                    pending,
+                    Math.max(pending.length * 2, top + parts.length)
+                );
+            }
+            for (int i = parts.length - 1; i >= 0; i--) {
+                pending[top++] = parts[i];
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Mirrors {@link Expr#simplify(Map, int[])}; a null map records no
+     * steps, as {@link Expr#simplify()} does.
+     */
+    static Expr simplify(
+        Expr root,
+        Map<Integer, String> steps,
+        int[] stepCounter
+    ) {
+        Stack pending = new Stack();
+        Expr[] results = new Expr[16];
+        int top = 0;
+        pending.push(root, VISIT);
+        while (!pending.isEmpty()) {
+            int state = pending.topState();
+            Expr node = pending.pop();
+            Expr result;
+            if (state == VISIT) {
+                if (node instanceof BinaryOp) {
+                    if (steps != null) {
+                        steps.put(stepCounter[0]++, show(node));
+                    }
+                    BinaryOp binOp = (BinaryOp) node;
+                    pending.push(binOp, APPLY);
+                    pending.push(binOp.getRight(), VISIT);
+                    pending.push(binOp.getLeft(), VISIT);
+                    continue;
+                }
+                if (node instanceof FunctionExpr) {
+                    if (steps != null) {
+                        steps.put(stepCounter[0]++, show(node));
+                    }
+                    pending.push(node, APPLY);
+                    pending.push(((FunctionExpr) node).getArg(), VISIT);
+                    continue;
+                }
+                result = steps != null
+                    ? node.simplify(steps, stepCounter)
+                    : node.simplify();
+                if (top == results.length) {
+                    results = Arrays.copyOf(results, top * 2);
+                }
+                top++;
+            } else if (node instanceof BinaryOp) {
+                top--;
+                result = ((BinaryOp) node).combine(
+                    results[top - 1],
+                    results[top],
+                    steps,
+                    stepCounter
+                );
+                results[top] = null;
+            } else {
+                result = ((FunctionExpr) node).combine(
+                    results[top - 1],
+                    steps,
+                    stepCounter
+                );
+            }
+            results[top - 1] = result;
+        }
+        return results[0];
+    }
+
+    /** Mirrors {@link Expr#bind(Bindings)}; unchanged subtrees are reused. */
+    static Expr bind(Expr root, Bindings bindings) {
+        Stack pending = new Stack();
+        Expr[] results = new Expr[16];
+        int top = 0;
+        pending.push(root, VISIT);
+        while (!pending.isEmpty()) {
+            int state = pending.topState();
+            Expr node = pending.pop();
+            Expr result;
+            if (state == VISIT) {
+                if (node instanceof BinaryOp) {
+                    BinaryOp binOp = (BinaryOp) node;
+                    pending.push(binOp, APPLY);
+                    pending.push(binOp.getRight(), VISIT);
+                    pending.push(binOp.getLeft(), VISIT);
+                    continue;
+                }
+                if (node instanceof FunctionExpr) {
+                    pending.push(node, APPLY);
+                    pending.push(((FunctionExpr) node).getArg(), VISIT);
+                    continue;
+                }
+                result = node.bind(bindings);
+                if (top == results.length) {
+                    results = Arrays.copyOf(results, top * 2);
+                }
+                top++;
+            } else if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                top--;
+                Expr left = results[top - 1];
+                Expr right = results[top];
+                results[top] = null;
+                result = left == binOp.getLeft() && right == binOp.getRight()
+                    ? binOp
+                    : new BinaryOp(binOp.getOpcode(), left, right);
+            } else {
+                FunctionExpr function = (FunctionExpr) node;
+                Expr arg = results[top - 1];
+                result = arg == function.getArg()
+                    ? function
+                    : new FunctionExpr(function, arg);
+            }
+            results[top - 1] = result;
+        }
+        return results[0];
+    }
+
+    /** Mirrors {@link Expr#equals(Object)}. */
+    static boolean equal(Expr a, Expr b) {
+        Stack pending = new Stack();
+        pending.push(a, VISIT);
+        pending.push(b, VISIT);
+        while (!pending.isEmpty()) {
+            Expr y = pending.pop();
+            Expr x = pending.pop();
+            if (x == y) {
+                continue;
+            }
+            if (x instanceof BinaryOp && y instanceof BinaryOp) {
+                BinaryOp p = (BinaryOp) x;
+                BinaryOp q = (BinaryOp) y;
+                if (
+                    p.getOpcode() != q.getOpcode() ||
+                    p.fingerprint() != q.fingerprint()
+                ) {
+                    return false;
+                }
+                pending.push(p.getRight(), VISIT);
+                pending.push(q.getRight(), VISIT);
+                pending.push(p.getLeft(), VISIT);
+                pending.push(q.getLeft(), VISIT);
+            } else if (x instanceof FunctionExpr && y instanceof FunctionExpr) {
+                FunctionExpr f = (FunctionExpr) x;
+                FunctionExpr g = (FunctionExpr) y;
+                if (
+                    f.getOpcode() != g.getOpcode() ||
+                    f.fingerprint() != g.fingerprint() ||
+                    !f.getName().equals(g.getName())
+                ) {
+                    return false;
+                }
+                pending.push(f.getArg(), VISIT);
+                pending.push(g.getArg(), VISIT);
+            } else if (!x.equals(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Growable stack of nodes, each with a visit state. */
+    private static final class Stack {
+
+        private Expr[] nodes = new Expr[16];
+        private int[] states = new int[16];
+        private int size;
+
+        void push(Expr node, int state) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                states = Arrays.copyOf(states, size * 2);
+            }
+            nodes[size] = node;
+            states[size++] = state;
+        }
+
+        int topState() {
+            return states[size - 1];
+        }
+
+        Expr pop() {
+            Expr node = nodes[--size];
+            nodes[size] = null;
+            return node;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
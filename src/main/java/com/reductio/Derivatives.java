@@ -0,0 +1,166 @@
+package com.reductio;
+
+import java.util.function.Function;
+
+/**
+ * Symbolic differentiation.
+ *
+ * <p>Rules reuse the nodes of the original tree wherever the derivative
+ * contains them, so {@code d(exp(u)) = exp(u) * u'} refers to the very
+ * {@code exp(u)} node being differentiated, and {@code d(u / v)} is
+ * written as {@code (u' - (u / v) * v') / v}, reusing the quotient and
+ * dividing by {@code v} only: differentiating never raises a division by
+ * zero the expression itself would not raise. Terms with a zero factor are
+ * dropped as they are built.
+ *
+ * <p>As in {@link FunctionExpr#simplify()}, a variable named {@code e}
+ * stands for Euler's number when it is a base: {@code d(e ^ u)} is
+ * {@code e ^ u * u'}.
+ */
+final class Derivatives {
+
+    private static final Constant ZERO = new Constant(0);
+    private static final Constant ONE = new Constant(1);
+
+    private Derivatives() {}
+
+    /**
+     * Returns the derivative of the expression with respect to the
+     * variable, before simplification.
+     *
+     * @throws UnsupportedOperationException for node types it does not
+     *         know and functions without a derivative rule
+     */
+    static Expr derive(Expr node, String variable) {
+        if (node instanceof Constant) {
+            return ZERO;
+        }
+        if (node instanceof Variable) {
+            return ((Variable) node).hasName(variable) ? ONE : ZERO;
+        }
+        if (node instanceof BinaryOp) {
+            return binary((BinaryOp) node, variable);
+        }
+        if (node.getClass() == FunctionExpr.class) {
+            return function((FunctionExpr) node, variable);
+        }
+        throw new UnsupportedOperationException(
+            "Cannot differentiate " + node.getClass().getSimpleName()
+        );
+    }
+
+    private static Expr binary(BinaryOp node, String variable) {
+        Expr u = node.getLeft();
+        Expr v = node.getRight();
+        Expr du = derive(u, variable);
+        Expr dv = derive(v, variable);
+        switch (node.getOpcode()) {
+            case PostfixProgram.ADD:
+                return plus(du, dv);
+            case PostfixProgram.SUB:
+                return minus(du, dv);
+            case PostfixProgram.MUL:
+                return plus(times(du, v), times(u, dv));
+            case PostfixProgram.DIV:
+                return divide(minus(du, times(node, dv)), v);
+            case PostfixProgram.POW:
+                return power(node, u, v, du, dv);
+            default:
+                throw new IllegalStateException(
+                    "Unknown operator: " + node.getOperator()
+                );
+        }
+    }
+
+    /**
+     * {@code d(u ^ v) = v * u ^ (v - 1) * u' + u ^ v * ln(u) * v'}.
+     */
+    private static Expr power(
+        BinaryOp node,
+        Expr u,
+        Expr v,
+        Expr du,
+        Expr dv
+    ) {
+        Expr baseTerm = ZERO;
+        if (!isZero(du)) {
+            Expr exponent = v instanceof Constant
+                ? new Constant(((Constant) v).getValue() - 1)
+                : minus(v, ONE);
+            baseTerm = times(times(v, new BinaryOp("^", u, exponent)), du);
+        }
+        Expr exponentTerm = ZERO;
+        if (!isZero(dv)) {
+            exponentTerm = isEuler(u)
+                ? times(node, dv)
+                : times(times(node, new FunctionExpr("ln", u)), dv);
+        }
+        return plus(baseTerm, exponentTerm);
+    }
+
+    private static Expr function(FunctionExpr node, String variable) {
+        Expr u = node.getArg();
+        Expr du = derive(u, variable);
+        if (isZero(du)) {
+            return ZERO;
+        }
+        Function<FunctionExpr, Expr> rule =
+            FunctionRegistry.of(node).derivative;
+        if (rule == null) {
+            throw new UnsupportedOperationException(
+                "Cannot differentiate " + node.getName()
+            );
+        }
+        Expr outer = rule.apply(node);
+        if (outer instanceof BinaryOp) {
+            // f'(u) = 1 / g is applied as u' / g
+            BinaryOp quotient = (BinaryOp) outer;
+            if (
+                quotient.getOpcode() == PostfixProgram.DIV &&
+                isOne(quotient.getLeft())
+            ) {
+                return divide(du, quotient.getRight());
+            }
+        }
+        return times(outer, du);
+    }
+
+    private static boolean isEuler(Expr base) {
+        if (base instanceof Constant) {
+            return ((Constant) base).getValue() == Math.E;
+        }
+        return base instanceof Variable && ((Variable) base).hasName("e");
+    }
+
+    private static boolean isZero(Expr expr) {
+        return expr instanceof Constant && ((Constant) expr).getValue() == 0;
+    }
+
+    private static boolean isOne(Expr expr) {
+        return expr instanceof Constant && ((Constant) expr).getValue() == 1;
+    }
+
+    private static Expr plus(Expr a, Expr b) {
+        if (isZero(a)) return b;
+        if (isZero(b)) return a;
+        return new BinaryOp("+", a, b);
+    }
+
+    private static Expr minus(Expr a, Expr b) {
+        if (isZero(b)) return a;
+        return new BinaryOp("-", a, b);
+    }
+
+    private static Expr times(Expr a, Expr b) {
+        if (isZero(a) || isZero(b)) return ZERO;
+        if (isOne(a)) return b;
+        if (isOne(b)) return a;
+        return new BinaryOp("*", a, b);
+    }
+
+    private static Expr divide(Expr a, Expr b) {
+        if (isZero(a)) return ZERO;
+        if (isOne(b)) return a;
+        return new BinaryOp("/", a, b);
+    }
+}
@@ -0,0 +1,85 @@
+package com.reductio;
+
+/**
+ * Per-row status codes of the exception-free evaluation mode.
+ *
+ * <p>{@link Expr#evaluateOrNaN(double[])} and
+ * {@link Expr#evaluateBatch(double[][], double[], byte[])} do not throw
+ * for the errors {@link Expr#evaluate(double[])} reports as exceptions:
+ * the result is NaN, and the batch form writes the cause to a side array.
+ * Codes are bit flags, so a row that fails in several places carries all
+ * of them:
+ *
+ * <pre>{@code
+ * byte[] status = new byte[rows];
+ * expr.evaluateBatch(columns, out, status);
+ * for (int row = 0; row < rows; row++) {
+ *     if ((status[row] & EvaluationStatus.DIVISION_BY_ZERO) != 0) {
+ *         ...
+ *     }
+ * }
+ * }</pre>
+ *
+ * <p>Only errors that depend on the values are reported this way. Unbound
+ * variables, unknown functions and unsupported node types still throw,
+ * before any row is evaluated when possible.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class EvaluationStatus {
+
+    /** The row evaluated without error. */
+    public static final byte OK = 0;
+
+    /** A divisor was within 1e-10 of zero. */
+    public static final byte DIVISION_BY_ZERO = 1;
+
+    /**
+     * {@code ln} or {@code log} of a non-positive number, or {@code sqrt}
+     * of a negative one.
+     */
+    public static final byte DOMAIN_ERROR = 2;
+
+    private EvaluationStatus() {}
+
+    /**
+     * Describes a status code with the messages the exceptions carry.
+     *
+     * @param status the status code
+     * @return a short description, such as {@code "Division by zero"}
+     */
+    public static String describe(int status) {
+        if (status == OK) {
+            return "OK";
+        }
+        StringBuilder sb = new StringBuilder();
+        if ((status & DIVISION_BY_ZERO) != 0) {
+            sb.append("Division by zero");
+        }
+        if ((status & DOMAIN_ERROR) != 0) {
+            sb.append(sb.length() > 0 ? ", " : "").append("Domain error");
+        }
+        return sb.toString();
+    }
+
+    // Non-throwing counterparts of the CompiledExpr helpers: they return
+    // the flag to raise, and leave NaN for the caller to write.
+
+    static int divide(double right) {
+        return Math.abs(right) < 1e-10 ? DIVISION_BY_ZERO : OK;
+    }
+
+    static int function(int opcode, double value) {
+        switch (opcode) {
+            case PostfixProgram.LN:
+            case PostfixProgram.LOG:
+                return value <= 0 ? DOMAIN_ERROR : OK;
+            case PostfixProgram.SQRT:
+                return value < 0 ? DOMAIN_ERROR : OK;
+            default:
+                return OK;
+        }
+    }
+}
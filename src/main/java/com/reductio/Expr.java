@@ -46,10 +46,301 @@ public abstract class Expr {
      */
     public abstract double evaluate(Map<String, Double> variables);
 
+    /**
+     * Evaluates the expression reading each variable from its slot.
+     *
+     * <p>The tree must have been produced by {@link #bind(Bindings)} or
+     * {@link Parser#parse(String, Bindings)}. Subclasses outside this
+     * package that do not override this method do not support slots.
+     *
+     * @param values variable values indexed by slot
+     * @return the evaluated result
+     * @throws IllegalStateException if a variable has no slot
+     */
+    public double evaluate(double[] values) {
+        throw new UnsupportedOperationException(
+            getClass().getSimpleName() + " does not support slot evaluation"
+        );
+    }
+
+    /**
+     * Evaluates the expression reading each variable from its slot, and
+     * returns NaN where {@link #evaluate(double[])} would throw for a
+     * division by zero or a {@code ln}, {@code log} or {@code sqrt}
+     * argument outside the domain. No exception is created, so this suits
+     * loops where many inputs are out of the domain. A failing subtree
+     * makes the whole result NaN, even under an operator that would turn
+     * a NaN operand into a number.
+     *
+     * @param values variable values indexed by slot
+     * @return the evaluated result, or NaN
+     * @throws IllegalStateException if a variable has no slot
+     * @throws UnsupportedOperationException for unknown functions
+     * @see EvaluationStatus
+     */
+    public double evaluateOrNaN(double[] values) {
+        return QuietEvaluation.evaluate(this, values);
+    }
+
+    /**
+     * Evaluates the expression with the current values of the bindings.
+     *
+     * @param bindings the bindings this tree was bound to
+     * @return the evaluated result
+     * @see #evaluate(double[])
+     */
+    public final double evaluate(Bindings bindings) {
+        return evaluate(bindings.values());
+    }
+
+    /**
+     * Evaluates the expression over whole columns of variable values.
+     *
+     * <p>{@code columns[slot][row]} holds the value of the variable bound
+     * to {@code slot} (see {@link #bind(Bindings)}) for {@code row}; the
+     * result for each row is written to {@code out[row]}. Rows are
+     * processed in cache-sized blocks, each node running one primitive
+     * loop per block instead of a tree walk per row.
+     *
+     * <p>Results match {@link #evaluate(double[])} row by row, except that
+     * {@code x ^ n} for an integer constant {@code n} up to 8 is done by
+     * multiplications (within {@code n - 1} ulp), division by a constant
+     * as multiplication by its reciprocal (within 2 ulp),
+     * {@code Math.E ^ x} as {@code exp(x)} (within {@code 1 + |x| / 2} ulp)
+     * and {@code sqrt(x * x)} as {@code abs(x)} (which does not overflow).
+     * If some rows would throw, an exception is thrown, but when several
+     * rows fail it is unspecified which error is reported, and {@code out}
+     * is left partially written.
+     *
+     * @param columns variable columns indexed by slot
+     * @param out the output array; its length is the number of rows
+     * @throws IllegalArgumentException if a column is missing or too short
+     * @throws IllegalStateException if a variable is not bound to a slot
+     */
+    public void evaluateBatch(double[][] columns, double[] out) {
+        BatchEvaluator.evaluate(this, columns, out, 0, out.length);
+    }
+
+    /**
+     * Evaluates every row of the columns like
+     * {@link #evaluateBatch(double[][], double[])}, but without throwing
+     * for division by zero or domain errors: such rows get NaN in
+     * {@code out} and their {@link EvaluationStatus} flags in
+     * {@code status}, while rows that succeed get
+     * {@link EvaluationStatus#OK}. Errors cost no exception, so inputs
+     * with many out-of-domain rows run at full speed.
+     *
+     * @param columns variable columns indexed by slot
+     * @param out the output array; its length is the number of rows
+     * @param status receives the status of every row; may be null when
+     *        NaN results are enough
+     * @throws IllegalArgumentException if a column is missing or too short,
+     *         or status is shorter than out
+     * @throws IllegalStateException if a variable is not bound to a slot
+     * @throws UnsupportedOperationException for unknown functions
+     */
+    public void evaluateBatch(double[][] columns, double[] out, byte[] status) {
+        BatchEvaluator.evaluate(this, columns, out, status);
+    }
+
+    /**
+     * Evaluates rows {@code [fromRow, toRow)} of the columns into the same
+     * rows of {@code out}.
+     *
+     * @param columns variable columns indexed by slot
+     * @param out the output array
+     * @param fromRow first row, inclusive
+     * @param toRow last row, exclusive
+     * @throws IndexOutOfBoundsException if the row range is invalid
+     * @see #evaluateBatch(double[][], double[])
+     */
+    public void evaluateBatch(
+        double[][] columns,
+        double[] out,
+        int fromRow,
+        int toRow
+    ) {
+        BatchEvaluator.evaluate(this, columns, out, fromRow, toRow);
+    }
+
+    /**
+     * Evaluates every row of the columns like
+     * {@link #evaluateBatch(double[][], double[])}, splitting large inputs
+     * across the common fork/join pool. Use a {@link ParallelEvaluator} to
+     * choose the executor or the size threshold.
+     *
+     * @param columns variable columns indexed by slot
+     * @param out the output array; its length is the number of rows
+     * @throws IllegalArgumentException if a column is missing or too short
+     * @throws IllegalStateException if a variable is not bound to a slot
+     */
+    public void evaluateBatchParallel(double[][] columns, double[] out) {
+        ParallelEvaluator.getDefault().evaluate(this, columns, out);
+    }
+
+    /**
+     * Resolves every variable of this expression to a slot, assigning new
+     * slots in the bindings for names it does not know yet.
+     *
+     * @param bindings the bindings holding the slot layout
+     * @return an equal expression whose variables carry their slots
+     */
+    public Expr bind(Bindings bindings) {
+        return this;
+    }
+
+    /**
+     * Compiles the expression to JVM bytecode for repeated evaluation.
+     *
+     * <p>The returned evaluator reads variables positionally, in the order
+     * of {@link CompiledExpr#getVariables()}, and gives the same results as
+     * {@link #evaluate(Map)}. Trees too large for a single JVM method, or
+     * runtimes that do not allow defining classes, get a
+     * {@link PostfixProgram} instead, and trees too deep to walk recursively
+     * are interpreted.
+     *
+     * @return the compiled evaluator
+     */
+    public CompiledExpr compile() {
+        return ExprCompiler.compile(this, Bindings.of(this));
+    }
+
+    /**
+     * Compiles the expression using the slot layout of the given bindings,
+     * so that {@link Bindings#values()} can be passed straight to the
+     * evaluator.
+     *
+     * @param bindings the bindings holding the slot layout
+     * @return the compiled evaluator
+     */
+    public CompiledExpr compile(Bindings bindings) {
+        return ExprCompiler.compile(this, bindings);
+    }
+
+    /**
+     * Returns an equal expression in which structurally equal subtrees
+     * (by {@link #equals(Object)}) are a single shared instance, so the
+     * tree becomes a DAG. {@link #compile()}, {@link #toPostfix(Bindings)}
+     * and {@link #evaluateBatch(double[][], double[])} do this themselves
+     * and evaluate each shared node once per row; the recursive
+     * {@code evaluate} methods still visit every reference.
+     *
+     * @return the expression with common subexpressions shared
+     */
+    public Expr eliminateCommonSubexpressions() {
+        return CommonSubexpressions.share(this);
+    }
+
+    /**
+     * Differentiates the expression symbolically. The derivative is
+     * simplified, and subtrees it repeats, often parts of this expression,
+     * are shared as by {@link #eliminateCommonSubexpressions()}, so that
+     * compiling or batch-evaluating it costs a small multiple of this
+     * expression.
+     *
+     * @param variable the variable to differentiate by
+     * @return the derivative
+     * @throws UnsupportedOperationException if the tree contains functions
+     *         or node types that cannot be differentiated, or is more than
+     *         512 levels deep
+     */
+    public Expr derive(String variable) {
+        DeepTrees.requireShallow(this, "differentiate");
+        Expr derivative = Derivatives.derive(this, variable);
+        return CommonSubexpressions.share(derivative.simplify());
+    }
+
+    /**
+     * Returns an evaluator computing this expression together with its
+     * derivative with respect to a variable, in one allocation-free pass.
+     *
+     * @param variable the variable to differentiate by
+     * @return the evaluator, variables in order of first appearance
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    public DualEvaluator dual(String variable) {
+        return new DualEvaluator(this, Bindings.of(this), variable);
+    }
+
+    /**
+     * Returns an evaluator computing this expression together with its
+     * gradient with respect to every variable, in one forward and one
+     * backward sweep.
+     *
+     * @return the evaluator, variables in order of first appearance
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    public GradientEvaluator gradient() {
+        return new GradientEvaluator(this, Bindings.of(this));
+    }
+
+    /**
+     * Returns an evaluator that caches the value of every subtree and,
+     * when variables change, recomputes only the subtrees reading them.
+     *
+     * @return the evaluator, variables in order of first appearance
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    public IncrementalEvaluator incremental() {
+        return new IncrementalEvaluator(this, Bindings.of(this));
+    }
+
+    /**
+     * Returns an evaluator that interprets the tree at first and switches
+     * to a postfix program, then to bytecode, in the background once it
+     * has been called {@link TieredExpr#DEFAULT_THRESHOLD} times. Use
+     * {@link TieredExpr#of(Expr, Bindings, int, java.util.concurrent.Executor)}
+     * to choose the threshold or the executor.
+     *
+     * @return the tiered evaluator, variables in order of first appearance
+     */
+    public TieredExpr tiered() {
+        return TieredExpr.of(this);
+    }
+
+    /**
+     * Flattens the expression to a postfix program for a stack machine,
+     * which needs no runtime class generation.
+     *
+     * @param bindings the bindings holding the slot layout
+     * @return the postfix program
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    public PostfixProgram toPostfix(Bindings bindings) {
+        return PostfixProgram.of(bind(bindings), bindings.getNames());
+    }
+
+    /**
+     * Rewrites the expression in canonical form: sums and products are
+     * flattened into n-ary ones, like terms and like factors are collected
+     * through hash maps, and terms are sorted, so
+     * {@code 2x + 3y - 5x + 7 - 2y} becomes {@code -3 * x + y + 7}. Unlike
+     * {@link #simplify()}, which applies its rules to one operator at a
+     * time, a {@code k}-term sum takes {@code O(k log k)} whatever its
+     * shape.
+     *
+     * @return the canonical form
+     */
+    public Expr canonicalize() {
+        return CanonicalForm.canonicalize(this);
+    }
+
     /**
      * Returns a copy of this expression.
      *
-     * @return a deep copy of the expression
+     * <p>Expressions are immutable, so the built-in node types return
+     * themselves: a tree can be cached, shared between threads or kept by
+     * several parents without being copied.
+     *
+     * @return an expression equal to this one
      */
     public abstract Expr copy();
 
@@ -70,6 +361,96 @@ public abstract class Expr {
     @Override
     public abstract int hashCode();
 
+    /**
+     * Returns a 64-bit structural fingerprint: equal expressions have equal
+     * fingerprints. The built-in node types compute it once, when the node
+     * is built, and derive {@link #hashCode()} from it, so hashing a tree
+     * takes constant time whatever its size.
+     *
+     * @return the fingerprint
+     */
+    public long fingerprint() {
+        return hashCode();
+    }
+
+    /**
+     * Returns a fingerprint that ignores the operand order of commutative
+     * operators ({@link BinaryOp#isCommutative()}): {@code x + y} and
+     * {@code y + x} have the same one. Associativity is not taken into
+     * account, so {@code (x + y) + z} and {@code x + (y + z)} differ.
+     *
+     * @return the canonical fingerprint
+     */
+    public long canonicalFingerprint() {
+        return fingerprint();
+    }
+
+    /**
+     * Checks if this expression equals another one up to the operand order
+     * of commutative operators.
+     *
+     * @param other the other expression
+     * @return true if the expressions are equal once commutative operands
+     *         are reordered
+     */
+    public boolean equalsCanonical(Expr other) {
+        return equals(other);
+    }
+
+    /**
+     * Returns a key under which expressions equal up to the operand order
+     * of commutative operators share one map entry:
+     *
+     * <pre>{@code
+     * Bindings bindings = new Bindings("x", "y");
+     * Map<Object, CompiledExpr> compiled = new ConcurrentHashMap<>();
+     * compiled.computeIfAbsent(
+     *     expr.canonicalKey(),
+     *     key -> expr.compile(bindings)
+     * );
+     * }</pre>
+     *
+     * <p>A hit returns the entry of whichever expression was stored first.
+     * Compile against one fixed {@link Bindings}, as above: with
+     * {@link #compile()}, a hit for {@code y * x - y} can return the entry
+     * of {@code x * y - y}, whose {@link CompiledExpr#getVariables()} order
+     * is {@code [x, y]} rather than {@code [y, x]}. The entry also evaluates
+     * commutative operands in the stored order, which can change which of
+     * two failing operands reports its exception.
+     *
+     * @return a key hashed by {@link #canonicalFingerprint()} and compared
+     *         with {@link #equalsCanonical(Expr)}
+     */
+    public final Object canonicalKey() {
+        return new CanonicalKey(this);
+    }
+
+    /**
+     * Height of the tree, counting this node; node types other than the
+     * built-in ones count as leaves.
+     */
+    int depth() {
+        return 1;
+    }
+
+    /**
+     * Combines a fingerprint with a value; the result depends on the order
+     * of the values combined.
+     */
+    static long mix(long hash, long value) {
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /** 64-bit hash of a string, for names. */
+    static long hash(String text) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
     /**
      * Returns the string representation.
      *
@@ -79,4 +460,31 @@ public abstract class Expr {
     public String toString() {
         return show();
     }
+
+    private static final class CanonicalKey {
+
+        private final Expr expr;
+
+        CanonicalKey(Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (
+                obj instanceof CanonicalKey &&
+                expr.equalsCanonical(((CanonicalKey) obj).expr)
+            );
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(expr.canonicalFingerprint());
+        }
+
+        @Override
+        public String toString() {
+            return expr.show();
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package com.reductio;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe cache of parsed and simplified expressions keyed by
+ * the input string.
+ *
+ * <p>Lookups are lock-free. Each entry keeps a small saturating use counter;
+ * when the cache is full a clock hand sweeps the entries, halving counters
+ * as it passes and evicting the first entry whose counter has dropped to
+ * zero. Frequently used formulas therefore survive bursts of one-off
+ * inputs, while formulas that stop being used age out.
+ *
+ * <p>The cached trees are immutable and may be shared freely between
+ * threads.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class ExprCache {
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final int maximumSize;
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    // Guarded by itself
+    private final Entry[] clock;
+    private int hand;
+    private int size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache holding at most {@code maximumSize} expressions.
+     *
+     * @param maximumSize the maximum number of cached input strings
+     * @throws IllegalArgumentException if maximumSize is not positive
+     */
+    public ExprCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException(
+                "Maximum size must be positive"
+            );
+        }
+        this.maximumSize = maximumSize;
+        this.entries = new ConcurrentHashMap<>(
+            Math.min(maximumSize, 1 << 16)
+        );
+        this.clock = new Entry[maximumSize];
+    }
+
+    /**
+     * Returns the parsed tree for the expression, parsing it on a miss.
+     *
+     * @param expression the mathematical expression as a string
+     * @return the shared parsed expression tree
+     * @throws Parser.ParseException if the expression is invalid
+     */
+    public Expr parse(String expression) {
+        return lookup(expression).parsed;
+    }
+
+    /**
+     * Returns the simplified tree for the expression, parsing and
+     * simplifying it on a miss.
+     *
+     * @param expression the mathematical expression as a string
+     * @return the shared simplified expression tree
+     * @throws Parser.ParseException if the expression is invalid
+     */
+    public Expr simplify(String expression) {
+        Entry entry = lookup(expression);
+        Expr simplified = entry.simplified;
+        if (simplified == null) {
+            // Racing threads compute equal trees; either one may win.
+            simplified = entry.parsed.simplify();
+            entry.simplified = simplified;
+        }
+        return simplified;
+    }
+
+    /**
+     * Removes every cached expression. Statistics are kept.
+     */
+    public void clear() {
+        synchronized (clock) {
+            entries.clear();
+            Arrays.fill(clock, null);
+            hand = 0;
+            size = 0;
+        }
+    }
+
+    /**
+     * Gets the number of cached expressions.
+     *
+     * @return the current number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the maximum number of cached expressions.
+     *
+     * @return the size bound given at construction
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns a snapshot of the hit, miss and eviction counters.
+     *
+     * @return the current statistics
+     */
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private Entry lookup(String expression) {
+        if (expression == null) {
+            return new Entry(null, Parser.parseUncached(null));
+        }
+
+        Entry entry = entries.get(expression);
+        if (entry != null) {
+            hits.increment();
+            entry.touch();
+            return entry;
+        }
+
+        misses.increment();
+        Entry created = new Entry(
+            expression,
+            Parser.parseUncached(expression)
+        );
+
+        synchronized (clock) {
+            Entry existing = entries.get(expression);
+            if (existing != null) {
+                return existing;
+            }
+            if (size < maximumSize) {
+                clock[size++] = created;
+            } else {
+                evictAndReplace(created);
+            }
+            entries.put(expression, created);
+        }
+        return created;
+    }
+
+    private void evictAndReplace(Entry replacement) {
+        while (true) {
+            Entry candidate = clock[hand];
+            if (candidate.frequency == 0) {
+                entries.remove(candidate.key);
+                evictions.increment();
+                clock[hand] = replacement;
+                hand = (hand + 1) % maximumSize;
+                return;
+            }
+            candidate.frequency >>= 1;
+            hand = (hand + 1) % maximumSize;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final Expr parsed;
+        private volatile Expr simplified;
+
+        // Lost updates are harmless: the counter only steers eviction.
+        private volatile int frequency;
+
+        Entry(String key, Expr parsed) {
+            this.key = key;
+            this.parsed = parsed;
+        }
+
+        void touch() {
+            int current = frequency;
+            if (current < MAX_FREQUENCY) {
+                frequency = current + 1;
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of cache statistics.
+     */
+    public static final class Stats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        Stats(long hitCount, long missCount, long evictionCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        /**
+         * Gets the number of lookups served from the cache.
+         *
+         * @return hit count
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * Gets the number of lookups that had to parse the input.
+         *
+         * @return miss count
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Gets the number of entries evicted to respect the size bound.
+         *
+         * @return eviction count
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * Gets the fraction of lookups that were hits.
+         *
+         * @return hit rate between 0 and 1, or 1 if there were no lookups
+         */
+        public double getHitRate() {
+            long total = hitCount + missCount;
+            return total == 0 ? 1.0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "Stats[hits=%d, misses=%d, evictions=%d, hitRate=%.3f]",
+                hitCount,
+                missCount,
+                evictionCount,
+                getHitRate()
+            );
+        }
+    }
+}
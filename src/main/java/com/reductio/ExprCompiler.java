@@ -0,0 +1,624 @@
+package com.reductio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates expression trees into JVM classes extending
+ * {@link CompiledExpr}.
+ *
+ * <p>The class file is written directly (no bytecode library): the
+ * generated methods are straight-line code made of array loads, constant
+ * loads, arithmetic instructions and static calls, so neither branches nor
+ * stack map frames are needed. Trees first go through
+ * {@link StrengthReduction}, then repeated subtrees are computed once and
+ * kept in local variables (see {@link CommonSubexpressions}). On JDK 15+
+ * the class is defined as a hidden class and can be unloaded together with
+ * its {@code CompiledExpr}; older runtimes fall back to
+ * {@code Lookup.defineClass}.
+ */
+final class ExprCompiler {
+
+    private static final String SUPER = "com/reductio/CompiledExpr";
+    private static final String MATH = "java/lang/Math";
+
+    /** Generated code must fit the 64KB method limit with headroom. */
+    private static final int MAX_CODE_LENGTH = 60_000;
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private static final boolean BYTECODE_ENABLED = Boolean.parseBoolean(
+        System.getProperty("reductio.bytecode", "true")
+    );
+
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_CLASS_OPTIONS;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> optionType = Class.forName(
+                "java.lang.invoke.MethodHandles$Lookup$ClassOption"
+            );
+            options = Array.newInstance(optionType, 0);
+            method = MethodHandles.Lookup.class.getMethod(
+                "defineHiddenClass",
+                byte[].class,
+                boolean.class,
+                options.getClass()
+            );
+        } catch (ReflectiveOperationException e) {
+            // Pre-15 runtime: use Lookup.defineClass
+        }
+        DEFINE_HIDDEN_CLASS = method;
+        NO_CLASS_OPTIONS = options;
+    }
+
+    private ExprCompiler() {
+        // Utility class
+    }
+
+    /**
+     * Compiles the expression against the slot layout of the bindings.
+     * Trees that are too large for a single method, or runtimes that refuse
+     * to define classes, get a {@link PostfixProgram} instead; trees with
+     * unknown node types, or too deep to walk recursively, fall back to
+     * tree evaluation.
+     */
+    static CompiledExpr compile(Expr expr, Bindings bindings) {
+        Expr bound = expr.bind(bindings);
+        List<String> variables = bindings.getNames();
+
+        if (
+            bound.depth() > DeepTrees.RECURSION_LIMIT || !isCompilable(bound)
+        ) {
+            return new Interpreted(bound, variables);
+        }
+        if (!BYTECODE_ENABLED) {
+            return program(bound, variables);
+        }
+
+        try {
+            byte[] bytes = new ClassFile(
+                CommonSubexpressions.share(StrengthReduction.reduce(bound)),
+                variables.size()
+            ).toByteArray();
+            if (bytes == null) {
+                return program(bound, variables);
+            }
+            Class<?> type = define(bytes);
+            return (CompiledExpr) type
+                .getConstructor(Expr.class, List.class)
+                .newInstance(bound, variables);
+        } catch (
+            ReflectiveOperationException |
+            RuntimeException |
+            LinkageError |
+            StackOverflowError e
+        ) {
+            return program(bound, variables);
+        }
+    }
+
+    private static CompiledExpr program(Expr bound, List<String> variables) {
+        try {
+            return PostfixProgram.of(bound, variables);
+        } catch (RuntimeException | StackOverflowError e) {
+            // Unknown operator, oversized operand or too deep a tree
+            return new Interpreted(bound, variables);
+        }
+    }
+
+    /**
+     * Whether the tree is made only of the four built-in node types with
+     * bound variables.
+     */
+    static boolean isCompilable(Expr expr) {
+        if (expr instanceof Constant) {
+            return true;
+        }
+        if (expr instanceof Variable) {
+            return ((Variable) expr).getSlot() >= 0;
+        }
+        if (expr instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) expr;
+            return isCompilable(binOp.getLeft()) && isCompilable(binOp.getRight());
+        }
+        if (expr instanceof FunctionExpr) {
+            return isCompilable(((FunctionExpr) expr).getArg());
+        }
+        return false;
+    }
+
+    private static Class<?> define(byte[] bytes)
+        throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (DEFINE_HIDDEN_CLASS != null) {
+            MethodHandles.Lookup hidden = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+                lookup,
+                bytes,
+                true,
+                NO_CLASS_OPTIONS
+            );
+            return hidden.lookupClass();
+        }
+        return lookup.defineClass(bytes);
+    }
+
+    /**
+     * Fallback for trees neither form can represent. It evaluates the
+     * strength-reduced tree, as the other forms do.
+     */
+    private static final class Interpreted extends CompiledExpr {
+
+        private final Expr reduced;
+
+        Interpreted(Expr source, List<String> variables) {
+            super(source, variables);
+            this.reduced = StrengthReduction.reduce(source);
+        }
+
+        @Override
+        public double applyAsDouble(double[] values) {
+            return reduced.evaluate(values);
+        }
+    }
+
+    /**
+     * Minimal class file writer for one generated evaluator.
+     */
+    private static final class ClassFile {
+
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+
+        private static final int CONSTANT_UTF8 = 1;
+        private static final int CONSTANT_INTEGER = 3;
+        private static final int CONSTANT_DOUBLE = 6;
+        private static final int CONSTANT_CLASS = 7;
+        private static final int CONSTANT_STRING = 8;
+        private static final int CONSTANT_METHODREF = 10;
+        private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+        private final Expr expr;
+        private final Map<Expr, Integer> temporaries;
+        private final int variableCount;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        // Per method body: which temporaries hold a value, and stack size
+        private boolean[] stored;
+        private int maxStack;
+
+        ClassFile(Expr expr, int variableCount) {
+            this.expr = expr;
+            this.temporaries = CommonSubexpressions.temporaries(expr);
+            this.variableCount = variableCount;
+        }
+
+        /**
+         * @return the class bytes, or null if the code is too large
+         */
+        byte[] toByteArray() {
+            try {
+                String name = SUPER + "$Generated" + COUNTER.incrementAndGet();
+                int thisClass = classRef(name);
+                int superClass = classRef(SUPER);
+                int code = utf8("Code");
+
+                ByteArrayOutputStream methods = new ByteArrayOutputStream();
+                DataOutputStream methodsOut = new DataOutputStream(methods);
+                int methodCount = 0;
+
+                writeMethod(
+                    methodsOut,
+                    code,
+                    "<init>",
+                    "(Lcom/reductio/Expr;Ljava/util/List;)V",
+                    3,
+                    3,
+                    constructorCode()
+                );
+                methodCount++;
+
+                byte[] arrayBody = body(false);
+                if (arrayBody == null) {
+                    return null;
+                }
+                writeMethod(
+                    methodsOut,
+                    code,
+                    "applyAsDouble",
+                    "([D)D",
+                    maxStack,
+                    firstTemporary(false) + 2 * temporaries.size(),
+                    arrayBody
+                );
+                methodCount++;
+
+                if (variableCount <= 1) {
+                    byte[] scalarBody = body(true);
+                    if (scalarBody == null) {
+                        return null;
+                    }
+                    writeMethod(
+                        methodsOut,
+                        code,
+                        "applyAsDouble",
+                        "(D)D",
+                        maxStack,
+                        firstTemporary(true) + 2 * temporaries.size(),
+                        scalarBody
+                    );
+                    methodCount++;
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                DataOutputStream classOut = new DataOutputStream(out);
+                classOut.writeInt(0xCAFEBABE);
+                classOut.writeShort(0);
+                classOut.writeShort(55); // Java 11
+                classOut.writeShort(poolCount);
+                poolOut.flush();
+                pool.writeTo(classOut);
+                classOut.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                classOut.writeShort(thisClass);
+                classOut.writeShort(superClass);
+                classOut.writeShort(0); // interfaces
+                classOut.writeShort(0); // fields
+                classOut.writeShort(methodCount);
+                methodsOut.flush();
+                methods.writeTo(classOut);
+                classOut.writeShort(0); // attributes
+                classOut.flush();
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] constructorCode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(bytes);
+            code.writeByte(0x2a); // aload_0
+            code.writeByte(0x2b); // aload_1
+            code.writeByte(0x2c); // aload_2
+            code.writeByte(0xb7); // invokespecial
+            code.writeShort(
+                methodRef(
+                    SUPER,
+                    "<init>",
+                    "(Lcom/reductio/Expr;Ljava/util/List;)V"
+                )
+            );
+            code.writeByte(0xb1); // return
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return the code of one method, or null if it is too large;
+         *         sets {@code maxStack}
+         */
+        private byte[] body(boolean scalar) throws IOException {
+            if (firstTemporary(scalar) + 2 * temporaries.size() > 0xFFFF) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(bytes);
+            stored = new boolean[temporaries.size()];
+            maxStack = emit(expr, code, bytes, scalar);
+            if (maxStack < 0 || maxStack > 0xFFFF) {
+                return null;
+            }
+            code.writeByte(0xaf); // dreturn
+            code.flush();
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Local variable of the first temporary, after {@code this} and
+         * the parameter; each temporary takes two slots.
+         */
+        private static int firstTemporary(boolean scalar) {
+            return scalar ? 3 : 2;
+        }
+
+        /**
+         * Emits a node, or reloads it if it is shared and already computed.
+         *
+         * @return the operand stack depth (in slots, a double takes two)
+         *         needed by the node, or -1 if the code is too large
+         */
+        private int emit(
+            Expr node,
+            DataOutputStream code,
+            ByteArrayOutputStream bytes,
+            boolean scalar
+        ) throws IOException {
+            Integer temporary = temporaries.get(node);
+            if (temporary == null) {
+                return emitNode(node, code, bytes, scalar);
+            }
+            int local = firstTemporary(scalar) + 2 * temporary;
+            if (stored[temporary]) {
+                localInstruction(code, 0x18, local); // dload
+                return 2;
+            }
+            int depth = emitNode(node, code, bytes, scalar);
+            if (depth < 0) {
+                return -1;
+            }
+            code.writeByte(0x5c); // dup2
+            localInstruction(code, 0x39, local); // dstore
+            stored[temporary] = true;
+            return Math.max(depth, 4);
+        }
+
+        private int emitNode(
+            Expr node,
+            DataOutputStream code,
+            ByteArrayOutputStream bytes,
+            boolean scalar
+        ) throws IOException {
+            if (bytes.size() > MAX_CODE_LENGTH) {
+                return -1;
+            }
+
+            if (node instanceof Constant) {
+                double value = ((Constant) node).getValue();
+                if (Double.doubleToRawLongBits(value) == 0L) {
+                    code.writeByte(0x0e); // dconst_0
+                } else if (value == 1.0) {
+                    code.writeByte(0x0f); // dconst_1
+                } else {
+                    code.writeByte(0x14); // ldc2_w
+                    code.writeShort(doubleConstant(value));
+                }
+                return 2;
+            }
+
+            if (node instanceof Variable) {
+                if (scalar) {
+                    code.writeByte(0x27); // dload_1
+                    return 2;
+                }
+                code.writeByte(0x2b); // aload_1
+                pushInt(code, ((Variable) node).getSlot());
+                code.writeByte(0x31); // daload
+                return 2;
+            }
+
+            if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                int left = emit(binOp.getLeft(), code, bytes, scalar);
+                if (left < 0) {
+                    return -1;
+                }
+                int right = emit(binOp.getRight(), code, bytes, scalar);
+                if (right < 0) {
+                    return -1;
+                }
+                int depth = Math.max(left, 2 + right);
+                switch (binOp.getOpcode()) {
+                    case PostfixProgram.ADD:
+                        code.writeByte(0x63); // dadd
+                        return depth;
+                    case PostfixProgram.SUB:
+                        code.writeByte(0x67); // dsub
+                        return depth;
+                    case PostfixProgram.MUL:
+                        code.writeByte(0x6b); // dmul
+                        return depth;
+                    case PostfixProgram.DIV:
+                        invokeStatic(code, SUPER, "divide", "(DD)D");
+                        return depth;
+                    case PostfixProgram.POW:
+                        invokeStatic(code, MATH, "pow", "(DD)D");
+                        return depth;
+                    default:
+                        return -1;
+                }
+            }
+
+            FunctionExpr function = (FunctionExpr) node;
+            int depth = emit(function.getArg(), code, bytes, scalar);
+            if (depth < 0) {
+                return -1;
+            }
+            switch (function.getOpcode()) {
+                case PostfixProgram.SIN:
+                case PostfixProgram.COS:
+                case PostfixProgram.TAN:
+                case PostfixProgram.EXP:
+                case PostfixProgram.ABS:
+                    invokeStatic(code, MATH, function.getName(), "(D)D");
+                    return depth;
+                case PostfixProgram.LN:
+                case PostfixProgram.LOG:
+                case PostfixProgram.SQRT:
+                    invokeStatic(code, SUPER, function.getName(), "(D)D");
+                    return depth;
+                default:
+                    code.writeByte(0x13); // ldc_w
+                    code.writeShort(stringConstant(function.getName()));
+                    invokeStatic(
+                        code,
+                        SUPER,
+                        "registeredFunction",
+                        "(DLjava/lang/String;)D"
+                    );
+                    return Math.max(depth, 3);
+            }
+        }
+
+        /**
+         * Emits dload/dstore with a one-byte index, or its wide form.
+         */
+        private static void localInstruction(
+            DataOutputStream code,
+            int opcode,
+            int local
+        ) throws IOException {
+            if (local <= 0xFF) {
+                code.writeByte(opcode);
+                code.writeByte(local);
+            } else {
+                code.writeByte(0xc4); // wide
+                code.writeByte(opcode);
+                code.writeShort(local);
+            }
+        }
+
+        private void pushInt(DataOutputStream code, int value)
+            throws IOException {
+            if (value <= 5) {
+                code.writeByte(0x03 + value); // iconst_<n>
+            } else if (value <= Byte.MAX_VALUE) {
+                code.writeByte(0x10); // bipush
+                code.writeByte(value);
+            } else if (value <= Short.MAX_VALUE) {
+                code.writeByte(0x11); // sipush
+                code.writeShort(value);
+            } else {
+                code.writeByte(0x13); // ldc_w
+                code.writeShort(intConstant(value));
+            }
+        }
+
+        private void invokeStatic(
+            DataOutputStream code,
+            String owner,
+            String name,
+            String descriptor
+        ) throws IOException {
+            code.writeByte(0xb8); // invokestatic
+            code.writeShort(methodRef(owner, name, descriptor));
+        }
+
+        private void writeMethod(
+            DataOutputStream out,
+            int codeAttribute,
+            String name,
+            String descriptor,
+            int maxStack,
+            int maxLocals,
+            byte[] code
+        ) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // attributes
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        private int utf8(String value) throws IOException {
+            Integer index = poolIndex.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+            return register("U" + value, 1);
+        }
+
+        private int classRef(String internalName) throws IOException {
+            Integer index = poolIndex.get("C" + internalName);
+            if (index != null) {
+                return index;
+            }
+            int name = utf8(internalName);
+            poolOut.writeByte(CONSTANT_CLASS);
+            poolOut.writeShort(name);
+            return register("C" + internalName, 1);
+        }
+
+        private int stringConstant(String value) throws IOException {
+            Integer index = poolIndex.get("S" + value);
+            if (index != null) {
+                return index;
+            }
+            int utf = utf8(value);
+            poolOut.writeByte(CONSTANT_STRING);
+            poolOut.writeShort(utf);
+            return register("S" + value, 1);
+        }
+
+        private int intConstant(int value) throws IOException {
+            Integer index = poolIndex.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+            return register("I" + value, 1);
+        }
+
+        private int doubleConstant(double value) throws IOException {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = poolIndex.get("D" + bits);
+            if (index != null) {
+                return index;
+            }
+            poolOut.writeByte(CONSTANT_DOUBLE);
+            poolOut.writeLong(bits);
+            return register("D" + bits, 2); // doubles take two entries
+        }
+
+        private int methodRef(String owner, String name, String descriptor)
+            throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            poolOut.writeByte(CONSTANT_METHODREF);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nameAndType);
+            return register(key, 1);
+        }
+
+        private int nameAndType(String name, String descriptor)
+            throws IOException {
+            String key = "N" + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(descriptorIndex);
+            return register(key, 1);
+        }
+
+        private int register(String key, int width) {
+            int index = poolCount;
+            poolIndex.put(key, index);
+            poolCount += width;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.reductio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-consing factory: structurally identical nodes built through the same
+ * interner are one instance.
+ *
+ * <p>Nodes are interned bottom-up, so the children of a node being interned
+ * are already canonical and the table compares them by reference; interning
+ * a node costs one hash lookup whatever the size of its subtrees. Equal
+ * canonical trees are therefore identical, and {@link Expr#equals(Object)}
+ * between them returns on its reference check. When installed with
+ * {@link Parser#setInterner(ExprInterner)}, the parser builds canonical
+ * nodes as it reads, so every occurrence of {@code x}, {@code 0} or
+ * {@code x ^ 2} across the parsed formulas is a single object:
+ *
+ * <pre>{@code
+ * Parser.setInterner(new ExprInterner());
+ * Expr a = Parser.parse("3x^2 + 1");
+ * Expr b = Parser.parse("(3x^2 + 1) * y");
+ * // ((BinaryOp) b).getLeft() == a
+ * }</pre>
+ *
+ * <p>The table holds its nodes through weak references, so it never keeps a
+ * tree alive; entries of collected nodes are dropped on later calls. An
+ * entry refers to the children of its node, so a discarded tree is
+ * released a level per garbage collection. The interner is safe for
+ * concurrent use. Constants are keyed by their bits, so
+ * {@code 0.0} and {@code -0.0} stay distinct, and variables by name and
+ * slot. Node types other than the four built-in ones are returned as they
+ * are.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class ExprInterner {
+
+    private static final int CONSTANT = -1;
+    private static final int VARIABLE = -2;
+
+    private final ConcurrentHashMap<Key, Ref> table =
+        new ConcurrentHashMap<>();
+    private final ReferenceQueue<Expr> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns the canonical instance of a tree, interning every node.
+     *
+     * @param expr the expression
+     * @return a tree equal to the expression whose nodes are canonical
+     */
+    public Expr intern(Expr expr) {
+        if (expr instanceof Constant) {
+            return canonical(new Key(CONSTANT, (Constant) expr), expr);
+        }
+        if (expr instanceof Variable) {
+            return canonical(new Key(VARIABLE, (Variable) expr), expr);
+        }
+        if (expr instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) expr;
+            Expr left = intern(binOp.getLeft());
+            Expr right = intern(binOp.getRight());
+            return binary(binOp, binOp.getOpcode(), left, right);
+        }
+        if (expr.getClass() == FunctionExpr.class) {
+            FunctionExpr function = (FunctionExpr) expr;
+            Expr arg = intern(function.getArg());
+            return function(function, function.getName(), arg);
+        }
+        return expr;
+    }
+
+    /**
+     * Returns the canonical constant with the given value.
+     *
+     * @param value the value
+     * @return the canonical constant
+     */
+    public Constant constant(double value) {
+        Constant candidate = new Constant(value);
+        return (Constant) canonical(new Key(CONSTANT, candidate), candidate);
+    }
+
+    /**
+     * Returns the canonical unbound variable with the given name.
+     *
+     * @param name the variable name
+     * @return the canonical variable
+     */
+    public Variable variable(String name) {
+        return variable(name, -1);
+    }
+
+    Variable variable(String name, int slot) {
+        Variable candidate = new Variable(name, slot);
+        return (Variable) canonical(new Key(VARIABLE, candidate), candidate);
+    }
+
+    /**
+     * Returns the canonical binary operation over operands that are already
+     * canonical.
+     */
+    Expr binary(int opcode, Expr left, Expr right) {
+        return binary(null, opcode, left, right);
+    }
+
+    /**
+     * Returns the canonical call of a function over an argument that is
+     * already canonical.
+     */
+    Expr function(String name, Expr arg) {
+        return function(null, name, arg);
+    }
+
+    /**
+     * Gets the number of canonical nodes. Nodes collected since the last
+     * call that interned one may still be counted.
+     *
+     * @return the table size
+     */
+    public int size() {
+        return table.size();
+    }
+
+    private Expr binary(BinaryOp node, int opcode, Expr left, Expr right) {
+        Key key = new Key(opcode, null, left, right);
+        Ref ref = table.get(key);
+        Expr canonical = ref == null ? null : ref.get();
+        if (canonical != null) {
+            return canonical;
+        }
+        // Reuse the node when its operands are already the canonical ones
+        Expr candidate = node != null &&
+            node.getLeft() == left &&
+            node.getRight() == right
+            ? node
+            : new BinaryOp(opcode, left, right);
+        return canonical(key, candidate);
+    }
+
+    private Expr function(FunctionExpr node, String name, Expr arg) {
+        Key key = new Key(PostfixProgram.UNKNOWN, name, arg, null);
+        Ref ref = table.get(key);
+        Expr canonical = ref == null ? null : ref.get();
+        if (canonical != null) {
+            return canonical;
+        }
+        Expr candidate = node != null && node.getArg() == arg
+            ? node
+            : new FunctionExpr(name, arg);
+        return canonical(key, candidate);
+    }
+
+    private Expr canonical(Key key, Expr candidate) {
+        purge();
+        while (true) {
+            Ref ref = table.get(key);
+            if (ref != null) {
+                Expr canonical = ref.get();
+                if (canonical != null) {
+                    return canonical;
+                }
+                table.remove(key, ref);
+            } else if (
+                table.putIfAbsent(key, new Ref(candidate, key, collected)) ==
+                null
+            ) {
+                return candidate;
+            }
+        }
+    }
+
+    /** Drops the entries of collected nodes. */
+    private void purge() {
+        Ref ref;
+        while ((ref = (Ref) collected.poll()) != null) {
+            table.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * Shallow structure of a node: operator, name or constant bits, and its
+     * already canonical children, compared by reference.
+     */
+    private static final class Key {
+
+        private final int kind;
+        private final long bits;
+        private final String name;
+        private final Expr left;
+        private final Expr right;
+        private final int hash;
+
+        Key(int kind, Constant constant) {
+            this(kind, Double.doubleToLongBits(constant.getValue()), null);
+        }
+
+        Key(int kind, Variable variable) {
+            this(kind, variable.getSlot(), variable.getName());
+        }
+
+        private Key(int kind, long bits, String name) {
+            this.kind = kind;
+            this.bits = bits;
+            this.name = name;
+            this.left = null;
+            this.right = null;
+            this.hash = 31 * (31 * kind + Long.hashCode(bits)) +
+                Objects.hashCode(name);
+        }
+
+        Key(int kind, String name, Expr left, Expr right) {
+            this.kind = kind;
+            this.bits = 0;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+            this.hash = 31 * (
+                    31 * (31 * kind + Objects.hashCode(name)) +
+                    System.identityHashCode(left)
+                ) +
+                System.identityHashCode(right);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return (
+                kind == other.kind &&
+                bits == other.bits &&
+                left == other.left &&
+                right == other.right &&
+                Objects.equals(name, other.name)
+            );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Ref extends WeakReference<Expr> {
+
+        final Key key;
+
+        Ref(Expr node, Key key, ReferenceQueue<Expr> queue) {
+            super(node, queue);
+            this.key = key;
+        }
+    }
+}
@@ -1,118 +1,189 @@
 package com.reductio;
 
 import java.util.*;
-import java.util.Objects;
 
-// Funções (ln, sin, cos, etc.)
-public class FunctionExpr extends Expr {
+/**
+ * Represents function calls in mathematical expressions (ln, sin, cos,
+ * etc.), resolved through {@link FunctionRegistry}.
+ *
+ * <p>Like every node type, a call is immutable: its fields are final and
+ * set once, so trees can be shared between threads and cached without
+ * copying.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.0.0
+ */
+public final class FunctionExpr extends Expr {
 
-    public String name;
-    public Expr arg;
+    private final String name;
+    private final Expr arg;
+    private final int opcode;
+    private final long fingerprint;
+    private final long canonicalFingerprint;
+    private final int depth;
 
+    /**
+     * Creates a new function call.
+     *
+     * @param name the function name
+     * @param arg the argument
+     * @throws IllegalArgumentException if the name is empty or either
+     *         parameter is null
+     */
     public FunctionExpr(String name, Expr arg) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException(
+                "Function name cannot be null or empty"
+            );
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("Argument cannot be null");
+        }
         this.name = name;
         this.arg = arg;
+        this.opcode = FunctionRegistry.opcode(name);
+        this.fingerprint = fingerprint(opcode, name, arg, false);
+        this.canonicalFingerprint = fingerprint(opcode, name, arg, true);
+        this.depth = 1 + arg.depth();
+    }
+
+    /** Rebuilds a node around a new argument, keeping the opcode. */
+    FunctionExpr(FunctionExpr function, Expr arg) {
+        this.name = function.name;
+        this.arg = arg;
+        this.opcode = function.opcode;
+        this.fingerprint = fingerprint(opcode, name, arg, false);
+        this.canonicalFingerprint = fingerprint(opcode, name, arg, true);
+        this.depth = 1 + arg.depth();
+    }
+
+    private static long fingerprint(
+        int opcode,
+        String name,
+        Expr arg,
+        boolean canonical
+    ) {
+        long function = opcode == PostfixProgram.UNKNOWN
+            ? mix(opcode, hash(name))
+            : opcode;
+        return mix(
+            function,
+            canonical ? arg.canonicalFingerprint() : arg.fingerprint()
+        );
+    }
+
+    /**
+     * Gets the function name.
+     *
+     * @return the function name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the argument.
+     *
+     * @return the argument
+     */
+    public Expr getArg() {
+        return arg;
+    }
+
+    /**
+     * Gets the opcode of the function, from {@link PostfixProgram#SIN} to
+     * {@link PostfixProgram#SQRT}, or {@link PostfixProgram#UNKNOWN} for
+     * functions evaluated through {@link FunctionRegistry}.
+     *
+     * @return the opcode
+     */
+    public int getOpcode() {
+        return opcode;
     }
 
     @Override
     public Expr simplify() {
-        Map<Integer, String> dummySteps = new LinkedHashMap<>();
-        int[] dummyCounter = { 0 };
-        return simplify(dummySteps, dummyCounter);
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.simplify(this, null, null);
+        }
+        return combine(arg.simplify(), null, null);
     }
 
     @Override
     public Expr simplify(Map<Integer, String> steps, int[] stepCounter) {
-        steps.put(stepCounter[0]++, this.show());
-        Expr A = arg.simplify(steps, stepCounter);
-
-        // ln(e^x) => x
-        if (name.equals("ln") && A instanceof BinaryOp) {
-            BinaryOp b = (BinaryOp) A;
-            if (
-                b.getOperator().equals("^") &&
-                b.getLeft() instanceof Variable &&
-                ((Variable) b.getLeft()).getName().equals("e")
-            ) {
-                Expr result = b.getRight().simplify(steps, stepCounter);
-                steps.put(stepCounter[0]++, result.show());
-                return result;
-            }
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.simplify(this, steps, stepCounter);
         }
-
-        // sin(0) = 0, cos(0) = 1, etc.
-        if (A instanceof Constant) {
-            double value = ((Constant) A).getValue();
-            switch (name) {
-                case "sin":
-                    if (value == 0) return new Constant(0);
-                    break;
-                case "cos":
-                    if (value == 0) return new Constant(1);
-                    break;
-                case "ln":
-                    if (value == 1) return new Constant(0);
-                    if (value == Math.E) return new Constant(1);
-                    break;
-            }
+        if (steps != null) {
+            steps.put(stepCounter[0]++, this.show());
         }
+        return combine(arg.simplify(steps, stepCounter), steps, stepCounter);
+    }
 
-        Expr result = new FunctionExpr(name, A);
-        steps.put(stepCounter[0]++, result.show());
+    /**
+     * Simplifies this call once its argument is simplified.
+     */
+    Expr combine(Expr A, Map<Integer, String> steps, int[] stepCounter) {
+        FunctionExpr call = new FunctionExpr(this, A);
+        Expr result = FunctionRegistry.simplify(call);
+        if (result instanceof Constant) {
+            return result;
+        }
+        // A rewritten call, such as ln(e^x) => x, may simplify further
+        if (result == null) {
+            result = call;
+        } else {
+            result = steps != null
+                ? result.simplify(steps, stepCounter)
+                : result.simplify();
+        }
+        if (steps != null) {
+            steps.put(stepCounter[0]++, result.show());
+        }
         return result;
     }
 
     @Override
     public String show() {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.show(this);
+        }
         return name + "(" + arg.show() + ")";
     }
 
     @Override
     public double evaluate(Map<String, Double> variables) {
-        double argValue = arg.evaluate(variables);
-
-        switch (name) {
-            case "sin":
-                return Math.sin(argValue);
-            case "cos":
-                return Math.cos(argValue);
-            case "tan":
-                return Math.tan(argValue);
-            case "ln":
-                if (argValue <= 0) {
-                    throw new IllegalArgumentException(
-                        "ln argument must be positive"
-                    );
-                }
-                return Math.log(argValue);
-            case "log":
-                if (argValue <= 0) {
-                    throw new IllegalArgumentException(
-                        "log argument must be positive"
-                    );
-                }
-                return Math.log10(argValue);
-            case "exp":
-                return Math.exp(argValue);
-            case "sqrt":
-                if (argValue < 0) {
-                    throw new IllegalArgumentException(
-                        "sqrt argument must be non-negative"
-                    );
-                }
-                return Math.sqrt(argValue);
-            case "abs":
-                return Math.abs(argValue);
-            default:
-                throw new UnsupportedOperationException(
-                    "Unknown function: " + name
-                );
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.evaluate(this, variables, null);
         }
+        return apply(arg.evaluate(variables));
+    }
+
+    @Override
+    public double evaluate(double[] values) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.evaluate(this, null, values);
+        }
+        return apply(arg.evaluate(values));
+    }
+
+    @Override
+    public Expr bind(Bindings bindings) {
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.bind(this, bindings);
+        }
+        Expr boundArg = arg.bind(bindings);
+        return boundArg == arg ? this : new FunctionExpr(this, boundArg);
+    }
+
+    double apply(double argValue) {
+        return FunctionRegistry.of(this).apply(argValue);
     }
 
     @Override
     public Expr copy() {
-        return new FunctionExpr(name, arg.copy());
+        return this;
     }
 
     @Override
@@ -120,13 +191,53 @@ public class FunctionExpr extends Expr {
         if (this == obj) return true;
         if (!(obj instanceof FunctionExpr)) return false;
         FunctionExpr other = (FunctionExpr) obj;
-        return (
-            Objects.equals(name, other.name) && Objects.equals(arg, other.arg)
-        );
+        if (opcode != other.opcode) return false;
+        if (fingerprint != other.fingerprint) return false;
+        if (
+            opcode == PostfixProgram.UNKNOWN &&
+            !name.equals(other.name)
+        ) {
+            return false;
+        }
+        if (depth > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.equal(this, other);
+        }
+        return arg.equals(other.arg);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, arg);
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    int depth() {
+        return depth;
+    }
+
+    @Override
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public long canonicalFingerprint() {
+        return canonicalFingerprint;
+    }
+
+    @Override
+    public boolean equalsCanonical(Expr other) {
+        if (this == other) return true;
+        if (!(other instanceof FunctionExpr)) return false;
+        FunctionExpr function = (FunctionExpr) other;
+        if (
+            opcode != function.opcode ||
+            canonicalFingerprint != function.canonicalFingerprint ||
+            (opcode == PostfixProgram.UNKNOWN &&
+                !name.equals(function.name))
+        ) {
+            return false;
+        }
+        return arg.equalsCanonical(function.arg);
     }
 }
@@ -0,0 +1,500 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+
+/**
+ * The functions the parser recognizes and the evaluators understand.
+ *
+ * <p>Each name maps to an evaluator, an optional derivative rule and an
+ * optional simplification rule. The intrinsic functions ({@code sin},
+ * {@code cos}, {@code tan}, {@code exp}, {@code abs}, {@code ln},
+ * {@code log} and {@code sqrt}) also carry a {@link PostfixProgram} opcode,
+ * which the compiled, batch and differentiating evaluators implement
+ * directly. The standard library adds {@code sinh}, {@code cosh},
+ * {@code tanh}, {@code sec}, {@code csc} and {@code cot}, and applications
+ * can add their own:
+ *
+ * <pre>{@code
+ * FunctionRegistry.register(
+ *     "sigmoid",
+ *     x -> 1 / (1 + Math.exp(-x)),
+ *     f -> new BinaryOp("*", f, new BinaryOp("-", new Constant(1), f))
+ * );
+ * Expr expr = Parser.parse("sigmoid(2x)");
+ * }</pre>
+ *
+ * <p>Functions without an opcode are called through their evaluator by
+ * every evaluation mode. Their values are not checked: an evaluator that
+ * throws makes the exception-free modes throw too, so prefer returning
+ * NaN outside the domain. Names are looked up in constant time, and the
+ * lexer finds the longest registered name ending a run of letters with a
+ * single walk of a trie.
+ *
+ * <p>Registration is global and permanent. Names are made of at least two
+ * letters and cannot be registered twice; a registered name is no longer
+ * read as a variable, so registering clears the cache installed with
+ * {@link Parser#setCache(ExprCache)}, whose trees may have read it as one.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class FunctionRegistry {
+
+    private static final Map<String, Definition> DEFINITIONS =
+        new ConcurrentHashMap<>();
+
+    /** Intrinsic definitions, indexed by opcode. */
+    private static final Definition[] INTRINSICS =
+        new Definition[PostfixProgram.UNKNOWN];
+
+    /** Reversed names, rebuilt on every registration. */
+    private static volatile Trie suffixes = Trie.EMPTY;
+
+    static {
+        intrinsic(PostfixProgram.SIN, Math::sin, f -> fn("cos", f), f ->
+            isConstant(f.getArg(), 0) ? new Constant(0) : null
+        );
+        intrinsic(PostfixProgram.COS, Math::cos, f -> neg(fn("sin", f)), f ->
+            isConstant(f.getArg(), 0) ? new Constant(1) : null
+        );
+        intrinsic(
+            PostfixProgram.TAN,
+            Math::tan,
+            f -> reciprocal(square(fn("cos", f))),
+            null
+        );
+        intrinsic(PostfixProgram.EXP, Math::exp, f -> f, null);
+        intrinsic(
+            PostfixProgram.ABS,
+            Math::abs,
+            f -> new BinaryOp(PostfixProgram.DIV, f.getArg(), f),
+            null
+        );
+        intrinsic(
+            PostfixProgram.LN,
+            CompiledExpr::ln,
+            f -> reciprocal(f.getArg()),
+            FunctionRegistry::simplifyLn
+        );
+        intrinsic(
+            PostfixProgram.LOG,
+            CompiledExpr::log,
+            f ->
+                reciprocal(
+                    new BinaryOp(
+                        PostfixProgram.MUL,
+                        f.getArg(),
+                        new Constant(Math.log(10))
+                    )
+                ),
+            null
+        );
+        intrinsic(
+            PostfixProgram.SQRT,
+            CompiledExpr::sqrt,
+            f ->
+                reciprocal(
+                    new BinaryOp(PostfixProgram.MUL, new Constant(2), f)
+                ),
+            null
+        );
+
+        register("sinh", Math::sinh, f -> fn("cosh", f));
+        register("cosh", Math::cosh, f -> fn("sinh", f));
+        register("tanh", Math::tanh, f -> reciprocal(square(fn("cosh", f))));
+        register(
+            "sec",
+            x -> 1 / Math.cos(x),
+            f -> new BinaryOp(PostfixProgram.MUL, f, fn("tan", f))
+        );
+        register(
+            "csc",
+            x -> 1 / Math.sin(x),
+            f -> neg(new BinaryOp(PostfixProgram.MUL, f, fn("cot", f)))
+        );
+        register(
+            "cot",
+            x -> Math.cos(x) / Math.sin(x),
+            f -> neg(reciprocal(square(fn("sin", f))))
+        );
+    }
+
+    private FunctionRegistry() {
+        // Utility class
+    }
+
+    /**
+     * Registers a function that cannot be differentiated.
+     *
+     * @param name the function name
+     * @param evaluator computes the function
+     * @throws IllegalArgumentException if the name is not made of at least
+     *         two letters or is already registered
+     */
+    public static void register(String name, DoubleUnaryOperator evaluator) {
+        register(name, evaluator, null, null);
+    }
+
+    /**
+     * Registers a differentiable function.
+     *
+     * @param name the function name
+     * @param evaluator computes the function
+     * @param derivative maps a call {@code f(u)} to {@code f'(u)}; the chain
+     *        rule factor {@code u'} is applied by the caller
+     * @throws IllegalArgumentException if the name is not made of at least
+     *         two letters or is already registered
+     */
+    public static void register(
+        String name,
+        DoubleUnaryOperator evaluator,
+        Function<FunctionExpr, Expr> derivative
+    ) {
+        register(name, evaluator, derivative, null);
+    }
+
+    /**
+     * Registers a function with its derivative and simplification rules.
+     *
+     * <p>The cache installed with {@link Parser#setCache(ExprCache)} is
+     * cleared, since it may hold trees that read the name as variables.
+     * Other {@link ExprCache} instances are not tracked and must be cleared
+     * by their owner.
+     *
+     * @param name the function name
+     * @param evaluator computes the function
+     * @param derivative maps a call {@code f(u)} to {@code f'(u)}, or null
+     *        if the function cannot be differentiated
+     * @param simplification maps a call whose argument is already
+     *        simplified to a simpler expression, or to null to keep it
+     * @throws IllegalArgumentException if the name is not made of at least
+     *         two letters or is already registered
+     */
+    public static synchronized void register(
+        String name,
+        DoubleUnaryOperator evaluator,
+        Function<FunctionExpr, Expr> derivative,
+        Function<FunctionExpr, Expr> simplification
+    ) {
+        if (name == null || name.length() < 2 || !isLetters(name)) {
+            throw new IllegalArgumentException(
+                "Function names need at least two letters: " + name
+            );
+        }
+        if (evaluator == null) {
+            throw new IllegalArgumentException("Evaluator cannot be null");
+        }
+        add(
+            new Definition(
+                name,
+                PostfixProgram.UNKNOWN,
+                evaluator,
+                derivative,
+                simplification
+            )
+        );
+    }
+
+    /**
+     * Checks whether a function is registered.
+     *
+     * @param name the function name
+     * @return true if the parser reads the name as a function
+     */
+    public static boolean isRegistered(String name) {
+        return name != null && DEFINITIONS.containsKey(name);
+    }
+
+    /**
+     * Gets the names of the registered functions.
+     *
+     * @return an immutable, sorted snapshot of the names
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(
+            new TreeSet<>(DEFINITIONS.keySet())
+        );
+    }
+
+    private static void intrinsic(
+        int opcode,
+        DoubleUnaryOperator evaluator,
+        Function<FunctionExpr, Expr> derivative,
+        Function<FunctionExpr, Expr> simplification
+    ) {
+        Definition definition = new Definition(
+            PostfixProgram.MNEMONICS[opcode],
+            opcode,
+            evaluator,
+            derivative,
+            simplification
+        );
+        INTRINSICS[opcode] = definition;
+        add(definition);
+    }
+
+    private static void add(Definition definition) {
+        if (DEFINITIONS.putIfAbsent(definition.name, definition) != null) {
+            throw new IllegalArgumentException(
+                "Function already registered: " + definition.name
+            );
+        }
+        suffixes = Trie.of(DEFINITIONS.keySet());
+        // Cached parses may have read the new name as a product of variables
+        ExprCache cache = Parser.getCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Maps a function name to its opcode, or {@link PostfixProgram#UNKNOWN}
+     * if it is not intrinsic.
+     */
+    static int opcode(String name) {
+        Definition definition = DEFINITIONS.get(name);
+        return definition == null
+            ? PostfixProgram.UNKNOWN
+            : definition.opcode;
+    }
+
+    /**
+     * Gets the length of the longest registered name the given name ends
+     * with, or 0 if there is none.
+     */
+    static int longestSuffix(String name) {
+        return suffixes.longestSuffix(name);
+    }
+
+    /**
+     * Gets the definition of a call.
+     *
+     * @throws UnsupportedOperationException if the function is unknown
+     */
+    static Definition of(FunctionExpr function) {
+        int opcode = function.getOpcode();
+        return opcode != PostfixProgram.UNKNOWN
+            ? INTRINSICS[opcode]
+            : of(function.getName());
+    }
+
+    /**
+     * Gets the definition of a function by name.
+     *
+     * @throws UnsupportedOperationException if the function is unknown
+     */
+    static Definition of(String name) {
+        Definition definition = name == null ? null : DEFINITIONS.get(name);
+        if (definition == null) {
+            throw new UnsupportedOperationException(
+                "Unknown function: " + name
+            );
+        }
+        return definition;
+    }
+
+    /**
+     * Applies the simplification rule of a call whose argument is already
+     * simplified.
+     *
+     * @return the replacement, or null if there is none
+     */
+    static Expr simplify(FunctionExpr call) {
+        int opcode = call.getOpcode();
+        Definition definition = opcode != PostfixProgram.UNKNOWN
+            ? INTRINSICS[opcode]
+            : DEFINITIONS.get(call.getName());
+        return definition == null || definition.simplification == null
+            ? null
+            : definition.simplification.apply(call);
+    }
+
+    private static boolean isLetters(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isLetter(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rule helpers; a call is rebuilt with the same argument.
+
+    private static Expr fn(String name, FunctionExpr call) {
+        return new FunctionExpr(name, call.getArg());
+    }
+
+    private static Expr neg(Expr expr) {
+        return new BinaryOp(PostfixProgram.SUB, new Constant(0), expr);
+    }
+
+    private static Expr square(Expr expr) {
+        return new BinaryOp(PostfixProgram.MUL, expr, expr);
+    }
+
+    private static Expr reciprocal(Expr expr) {
+        return new BinaryOp(PostfixProgram.DIV, new Constant(1), expr);
+    }
+
+    private static boolean isConstant(Expr expr, double value) {
+        return expr instanceof Constant &&
+            ((Constant) expr).getValue() == value;
+    }
+
+    /** {@code ln(1) = 0}, {@code ln(e) = 1} and {@code ln(e ^ x) = x}. */
+    private static Expr simplifyLn(FunctionExpr call) {
+        if (isConstant(call.getArg(), 1)) {
+            return new Constant(0);
+        }
+        if (isConstant(call.getArg(), Math.E)) {
+            return new Constant(1);
+        }
+        if (call.getArg() instanceof BinaryOp) {
+            BinaryOp power = (BinaryOp) call.getArg();
+            if (
+                power.getOpcode() == PostfixProgram.POW &&
+                power.getLeft() instanceof Variable &&
+                ((Variable) power.getLeft()).hasName("e")
+            ) {
+                return power.getRight();
+            }
+        }
+        return null;
+    }
+
+    /** A registered function. */
+    static final class Definition {
+
+        final String name;
+        final int opcode;
+        final DoubleUnaryOperator evaluator;
+        /** Maps {@code f(u)} to {@code f'(u)}; null if not differentiable. */
+        final Function<FunctionExpr, Expr> derivative;
+        /** Maps a simplified call to a replacement, or null; may be null. */
+        final Function<FunctionExpr, Expr> simplification;
+
+        /** {@code f'(x)} over slot 0, built on first use. */
+        private volatile Expr slope;
+
+        Definition(
+            String name,
+            int opcode,
+            DoubleUnaryOperator evaluator,
+            Function<FunctionExpr, Expr> derivative,
+            Function<FunctionExpr, Expr> simplification
+        ) {
+            this.name = name;
+            this.opcode = opcode;
+            this.evaluator = evaluator;
+            this.derivative = derivative;
+            this.simplification = simplification;
+        }
+
+        double apply(double value) {
+            return evaluator.applyAsDouble(value);
+        }
+
+        /**
+         * Evaluates the derivative at a point, for the numeric
+         * differentiation modes.
+         *
+         * @throws UnsupportedOperationException if the function has no
+         *         derivative rule
+         */
+        double slope(double value) {
+            Expr expr = slope;
+            if (expr == null) {
+                if (derivative == null) {
+                    throw new UnsupportedOperationException(
+                        "Cannot differentiate " + name
+                    );
+                }
+                FunctionExpr call = new FunctionExpr(
+                    name,
+                    new Variable("x", 0)
+                );
+                slope = expr = derivative.apply(call);
+            }
+            return expr.evaluate(new double[] { value });
+        }
+    }
+
+    /**
+     * Immutable trie over reversed names: walking a name from its last
+     * character finds every registered suffix in one pass.
+     */
+    private static final class Trie {
+
+        static final Trie EMPTY = new Trie(new char[0], new Trie[0], false);
+
+        private final char[] keys;
+        private final Trie[] children;
+        private final boolean terminal;
+
+        private Trie(char[] keys, Trie[] children, boolean terminal) {
+            this.keys = keys;
+            this.children = children;
+            this.terminal = terminal;
+        }
+
+        static Trie of(Set<String> names) {
+            List<String> reversed = new ArrayList<>(names.size());
+            for (String name : names) {
+                reversed.add(new StringBuilder(name).reverse().toString());
+            }
+            return build(reversed, 0);
+        }
+
+        private static Trie build(List<String> reversed, int depth) {
+            boolean terminal = false;
+            TreeMap<Character, List<String>> groups = new TreeMap<>();
+            for (String name : reversed) {
+                if (name.length() == depth) {
+                    terminal = true;
+                } else {
+                    groups
+                        .computeIfAbsent(
+                            name.charAt(depth),
+                            c -> new ArrayList<>()
+                        )
+                        .add(name);
+                }
+            }
+            char[] keys = new char[groups.size()];
+            Trie[] children = new Trie[groups.size()];
+            int i = 0;
+            for (Map.Entry<Character, List<String>> group : groups.entrySet()) {
+                keys[i] = group.getKey();
+                children[i++] = build(group.getValue(), depth + 1);
+            }
+            return new Trie(keys, children, terminal);
+        }
+
+        int longestSuffix(String name) {
+            Trie node = this;
+            int longest = 0;
+            for (int i = name.length() - 1; i >= 0; i--) {
+                int k = Arrays.binarySearch(node.keys, name.charAt(i));
+                if (k < 0) {
+                    break;
+                }
+                node = node.children[k];
+                if (node.terminal) {
+                    longest = name.length() - i;
+                }
+            }
+            return longest;
+        }
+    }
+}
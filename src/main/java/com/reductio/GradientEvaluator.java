@@ -0,0 +1,195 @@
+package com.reductio;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reverse-mode automatic differentiation: evaluates an expression and its
+ * gradient with respect to every variable in one forward and one backward
+ * sweep, whatever the number of variables.
+ *
+ * <p>The expression is recorded once, at construction, as a tape: its
+ * nodes in evaluation order, repeated subtrees merged as by
+ * {@link Expr#eliminateCommonSubexpressions()}, each holding an opcode of
+ * {@link PostfixProgram} and the tape indices of its operands. The forward
+ * sweep stores the value of every node; the backward sweep walks the tape
+ * in reverse, pushing each node's adjoint to its operands and, for
+ * variables, into the gradient. The value and adjoint buffers belong to
+ * the evaluator and are reused, so calls allocate nothing:
+ *
+ * <pre>{@code
+ * Bindings vars = new Bindings("r", "s", "t");
+ * GradientEvaluator risk = new GradientEvaluator(model, vars);
+ * double[] gradient = new double[vars.size()];
+ * for (double[] point : points) {
+ *     double value = risk.evaluate(point, gradient);
+ * }
+ * }</pre>
+ *
+ * <p>Values and exceptions match {@link Expr#evaluate(double[])}, and each
+ * partial derivative matches {@link DualEvaluator} up to rounding. Where
+ * the value is NaN or a derivative does not exist, reverse mode reports 0
+ * for variables the result does not depend on, where forward mode may
+ * carry the NaN along. Instances are not thread-safe; use one per thread.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class GradientEvaluator {
+
+    private static final double LN_10 = Math.log(10);
+
+    private final List<String> variables;
+    private final Tape tape;
+    private final double[] value;
+    private final double[] adjoint;
+
+    /**
+     * Records the tape of an expression, using the slot layout of the
+     * bindings.
+     *
+     * @param expr the expression
+     * @param bindings the bindings holding the slot layout
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    public GradientEvaluator(Expr expr, Bindings bindings) {
+        this.variables = bindings.getNames();
+        this.tape = new Tape(expr.bind(bindings));
+        this.value = new double[tape.length()];
+        this.adjoint = new double[tape.length()];
+    }
+
+    /**
+     * Gets the variable names, in the order of the gradient.
+     *
+     * @return immutable list of variable names
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Gets the number of nodes on the tape.
+     *
+     * @return the tape length
+     */
+    public int getTapeLength() {
+        return tape.length();
+    }
+
+    /**
+     * Evaluates the expression and writes its gradient.
+     *
+     * @param values variable values indexed by slot
+     * @param gradient receives the partial derivative for every slot; at
+     *        least {@code getVariables().size()} long
+     * @return the value of the expression
+     * @throws IllegalArgumentException if gradient is too short
+     */
+    public double evaluate(double[] values, double[] gradient) {
+        int slots = variables.size();
+        if (gradient == null || gradient.length < slots) {
+            throw new IllegalArgumentException(
+                "Gradient must have room for " + slots + " variables"
+            );
+        }
+        forward(values);
+        Arrays.fill(gradient, 0, slots, 0);
+        backward(gradient);
+        return value[tape.length() - 1];
+    }
+
+    private void forward(double[] values) {
+        for (int i = 0; i < value.length; i++) {
+            value[i] = tape.compute(i, value, values);
+        }
+    }
+
+    private void backward(double[] gradient) {
+        int[] ops = tape.ops;
+        int last = ops.length - 1;
+        Arrays.fill(adjoint, 0, last, 0);
+        adjoint[last] = 1;
+        for (int i = last; i >= 0; i--) {
+            double d = adjoint[i];
+            if (d == 0) {
+                continue; // nothing to push, not even 0 * infinity
+            }
+            int l = tape.left[i];
+            int r = tape.right[i];
+            switch (ops[i]) {
+                case PostfixProgram.CONST:
+                    break;
+                case PostfixProgram.LOAD:
+                    gradient[l] += d;
+                    break;
+                case PostfixProgram.ADD:
+                    adjoint[l] += d;
+                    adjoint[r] += d;
+                    break;
+                case PostfixProgram.SUB:
+                    adjoint[l] += d;
+                    adjoint[r] -= d;
+                    break;
+                case PostfixProgram.MUL:
+                    adjoint[l] += d * value[r];
+                    adjoint[r] += d * value[l];
+                    break;
+                case PostfixProgram.DIV:
+                    adjoint[l] += d / value[r];
+                    adjoint[r] -= d * value[i] / value[r];
+                    break;
+                case PostfixProgram.POW:
+                    // Constant operands and zero exponents get no adjoint,
+                    // so that x^2 at 0, 2^x and u^0 stay finite.
+                    double exponent = value[r];
+                    if (tape.varying[l] && exponent != 0) {
+                        adjoint[l] += d * exponent *
+                            Math.pow(value[l], exponent - 1);
+                    }
+                    if (tape.varying[r]) {
+                        adjoint[r] += d * value[i] * Math.log(value[l]);
+                    }
+                    break;
+                case PostfixProgram.SIN:
+                    adjoint[l] += d * Math.cos(value[l]);
+                    break;
+                case PostfixProgram.COS:
+                    adjoint[l] -= d * Math.sin(value[l]);
+                    break;
+                case PostfixProgram.TAN: {
+                    double cos = Math.cos(value[l]);
+                    adjoint[l] += d / (cos * cos);
+                    break;
+                }
+                case PostfixProgram.EXP:
+                    adjoint[l] += d * value[i];
+                    break;
+                case PostfixProgram.ABS: {
+                    double arg = value[l];
+                    adjoint[l] += arg > 0 ? d : arg < 0 ? -d : 0;
+                    break;
+                }
+                case PostfixProgram.LN:
+                    adjoint[l] += d / value[l];
+                    break;
+                case PostfixProgram.LOG:
+                    adjoint[l] += d / (value[l] * LN_10);
+                    break;
+                case PostfixProgram.SQRT:
+                    adjoint[l] += d / (2 * value[i]);
+                    break;
+                default:
+                    if (tape.varying[l]) {
+                        adjoint[l] += d * FunctionRegistry
+                            .of(tape.functionNames[i])
+                            .slope(value[l]);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.reductio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates bound expressions over columns stored off-heap, as flat files
+ * or buffers of little-endian doubles with one file per variable.
+ *
+ * <p>Rows are copied through a few {@link BatchEvaluator#BLOCK_SIZE} heap
+ * blocks and evaluated with the batch kernels, so the heap footprint does
+ * not depend on the number of rows. File channels are mapped one window of
+ * {@link #WINDOW_ROWS} rows at a time, so a single call can stream
+ * through files far larger than the 2 GB one mapping can cover:
+ *
+ * <pre>{@code
+ * Bindings vars = new Bindings("x", "y");
+ * Expr expr = Parser.parse("3x^2 + y", vars);
+ * try (
+ *     FileChannel x = FileChannel.open(xPath, READ);
+ *     FileChannel y = FileChannel.open(yPath, READ);
+ *     FileChannel out = FileChannel.open(outPath, READ, WRITE, CREATE)
+ * ) {
+ *     FileChannel[] columns = { x, y };
+ *     long rows = MappedEvaluator.evaluate(expr, columns, out);
+ *     out.force(false);
+ * }
+ * }</pre>
+ *
+ * <p>Results match {@link Expr#evaluateBatch(double[][], double[])}. The
+ * mappings are released by the garbage collector; output written through
+ * them reaches the file without further calls, and is made durable with
+ * {@link FileChannel#force(boolean)}.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class MappedEvaluator {
+
+    /** Rows per mapped window: 8 MB of each column. */
+    public static final int WINDOW_ROWS = 1 << 20;
+
+    private MappedEvaluator() {}
+
+    /**
+     * Evaluates every row of the input files into the output file. The
+     * number of rows is that of the shortest input file; the output file
+     * is written from its start and grows as needed.
+     *
+     * @param expr the bound expression
+     * @param columns input channels indexed by slot; entries for slots the
+     *        expression does not use may be null
+     * @param out the output channel, open for reading and writing
+     * @return the number of rows evaluated
+     * @throws IOException if a file cannot be mapped
+     * @throws IllegalArgumentException if a column is missing or there is
+     *         no input column at all
+     * @throws IllegalStateException if a variable is not bound to a slot
+     */
+    public static long evaluate(
+        Expr expr,
+        FileChannel[] columns,
+        FileChannel out
+    ) throws IOException {
+        String[] used = usedColumns(expr, columns);
+        long rows = Long.MAX_VALUE;
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot] != null) {
+                rows = Math.min(rows, columns[slot].size() / Double.BYTES);
+            }
+        }
+        if (rows == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("No input columns");
+        }
+        evaluate(expr, columns, out, 0, rows);
+        return rows;
+    }
+
+    /**
+     * Evaluates rows {@code [fromRow, toRow)} of the input files into the
+     * same rows of the output file, mapping one window at a time.
+     *
+     * @param expr the bound expression
+     * @param columns input channels indexed by slot; entries for slots the
+     *        expression does not use may be null
+     * @param out the output channel, open for reading and writing
+     * @param fromRow first row, inclusive
+     * @param toRow last row, exclusive
+     * @throws IOException if a file cannot be mapped
+     * @throws IndexOutOfBoundsException if the row range is invalid
+     * @throws IllegalArgumentException if a column is missing or too short
+     * @throws IllegalStateException if a variable is not bound to a slot
+     */
+    public static void evaluate(
+        Expr expr,
+        FileChannel[] columns,
+        FileChannel out,
+        long fromRow,
+        long toRow
+    ) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output cannot be null");
+        }
+        if (fromRow < 0 || fromRow > toRow) {
+            throw new IndexOutOfBoundsException(
+                "Row range [" + fromRow + ", " + toRow + ") is invalid"
+            );
+        }
+        String[] used = usedColumns(expr, columns);
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot] != null) {
+                long available = columns[slot].size() / Double.BYTES;
+                checkRows(used[slot], available, toRow);
+            }
+        }
+
+        Blocks blocks = new Blocks(expr, used);
+        DoubleBuffer[] inputs = new DoubleBuffer[columns.length];
+        for (long start = fromRow; start < toRow; start += WINDOW_ROWS) {
+            int rows = (int) Math.min(WINDOW_ROWS, toRow - start);
+            long position = start * Double.BYTES;
+            long size = (long) rows * Double.BYTES;
+            for (int slot = 0; slot < used.length; slot++) {
+                if (used[slot] != null) {
+                    inputs[slot] = doubles(
+                        columns[slot].map(MapMode.READ_ONLY, position, size)
+                    );
+                }
+            }
+            DoubleBuffer output = doubles(
+                out.map(MapMode.READ_WRITE, position, size)
+            );
+            blocks.evaluate(inputs, output, rows);
+        }
+    }
+
+    /**
+     * Evaluates buffers of little-endian doubles, typically
+     * {@link java.nio.MappedByteBuffer}s. The number of rows is
+     * {@code out.remaining() / 8}; each column is read from its current
+     * position. Buffer positions are left unchanged.
+     *
+     * @param expr the bound expression
+     * @param columns input buffers indexed by slot; entries for slots the
+     *        expression does not use may be null
+     * @param out the output buffer
+     * @throws IllegalArgumentException if a column is missing or too short
+     * @throws IllegalStateException if a variable is not bound to a slot
+     * @throws java.nio.ReadOnlyBufferException if out is read-only
+     */
+    public static void evaluate(
+        Expr expr,
+        ByteBuffer[] columns,
+        ByteBuffer out
+    ) {
+        if (out == null) {
+            throw new IllegalArgumentException("Output cannot be null");
+        }
+        String[] used = usedColumns(expr, columns);
+        DoubleBuffer output = doubles(out);
+        int rows = output.remaining();
+        DoubleBuffer[] inputs = new DoubleBuffer[columns.length];
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot] != null) {
+                inputs[slot] = doubles(columns[slot]);
+                checkRows(used[slot], inputs[slot].remaining(), rows);
+            }
+        }
+        new Blocks(expr, used).evaluate(inputs, output, rows);
+    }
+
+    private static DoubleBuffer doubles(ByteBuffer buffer) {
+        return buffer
+            .duplicate()
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asDoubleBuffer();
+    }
+
+    /**
+     * Validates the tree against the given columns, then returns the names
+     * of the variables it reads, indexed by slot (null for unused slots).
+     */
+    private static String[] usedColumns(Expr expr, Object[] columns) {
+        if (columns == null) {
+            throw new IllegalArgumentException("Columns cannot be null");
+        }
+        double[][] present = new double[columns.length][];
+        for (int slot = 0; slot < columns.length; slot++) {
+            if (columns[slot] != null) {
+                present[slot] = new double[0];
+            }
+        }
+        BatchEvaluator.check(expr, present, new double[0], 0, 0);
+
+        String[] used = new String[columns.length];
+        collect(expr, used);
+        return used;
+    }
+
+    private static void collect(Expr root, String[] used) {
+        // Explicit stack, so that deep trees do not overflow
+        List<Expr> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.remove(pending.size() - 1);
+            if (expr instanceof Variable) {
+                Variable variable = (Variable) expr;
+                used[variable.getSlot()] = variable.getName();
+            } else if (expr instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) expr;
+                pending.add(binOp.getRight());
+                pending.add(binOp.getLeft());
+            } else if (expr instanceof FunctionExpr) {
+                pending.add(((FunctionExpr) expr).getArg());
+            }
+        }
+    }
+
+    private static void checkRows(String name, long available, long rows) {
+        if (available < rows) {
+            throw new IllegalArgumentException(
+                "Column for variable '" + name + "' has fewer than " + rows +
+                " rows"
+            );
+        }
+    }
+
+    /**
+     * Heap blocks the columns are copied through, reused for every window.
+     */
+    private static final class Blocks {
+
+        private final double[][] columns;
+        private final double[] out = new double[BatchEvaluator.BLOCK_SIZE];
+        private final BatchEvaluator evaluator;
+
+        Blocks(Expr expr, String[] used) {
+            this.columns = new double[used.length][];
+            for (int slot = 0; slot < used.length; slot++) {
+                if (used[slot] != null) {
+                    columns[slot] = new double[BatchEvaluator.BLOCK_SIZE];
+                }
+            }
+            this.evaluator = new BatchEvaluator(expr, columns);
+        }
+
+        /**
+         * Evaluates the next {@code rows} rows of the inputs into the
+         * output, advancing all buffers.
+         */
+        void evaluate(DoubleBuffer[] inputs, DoubleBuffer output, int rows) {
+            for (int done = 0; done < rows; done += BatchEvaluator.BLOCK_SIZE) {
+                int length = Math.min(BatchEvaluator.BLOCK_SIZE, rows - done);
+                for (int slot = 0; slot < columns.length; slot++) {
+                    if (columns[slot] != null) {
+                        inputs[slot].get(columns[slot], 0, length);
+                    }
+                }
+                evaluator.evaluateBlock(0, length, out, 0);
+                output.put(out, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.reductio;
+
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Splits large evaluation jobs into row ranges evaluated in parallel.
+ *
+ * <p>Inputs with fewer rows than the threshold run on the calling thread.
+ * Larger inputs are cut into chunks of whole batch blocks, which run as
+ * fork/join tasks when the executor is a {@link ForkJoinPool} and as plain
+ * tasks otherwise. The calling thread waits for every chunk to finish.
+ *
+ * <p>Every row is computed exactly as in sequential evaluation, so
+ * {@code out} holds identical results. When rows fail, the exception
+ * of the first failing chunk is thrown, which is the one sequential
+ * evaluation would have thrown.
+ *
+ * <pre>{@code
+ * Bindings vars = new Bindings("x", "y");
+ * Expr expr = Parser.parse("3x^2 + y", vars);
+ * ParallelEvaluator.getDefault().evaluate(expr, new double[][] { xs, ys }, out);
+ *
+ * Function f = Function.identify(Parser.parse("2x^3 - x"), "x");
+ * new ParallelEvaluator(executor, 100_000).evaluate(f::evaluate, xs, out);
+ * }</pre>
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class ParallelEvaluator {
+
+    /** Default minimum number of rows evaluated in parallel. */
+    public static final int DEFAULT_THRESHOLD = 1 << 15;
+
+    /** Chunks per worker, so that uneven chunks still balance out. */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private static final ParallelEvaluator DEFAULT = new ParallelEvaluator(
+        ForkJoinPool.commonPool(),
+        DEFAULT_THRESHOLD
+    );
+
+    private final Executor executor;
+    private final int threshold;
+
+    /**
+     * Creates an evaluator running on the given executor.
+     *
+     * @param executor the executor running the chunks
+     * @param threshold minimum number of rows to split across threads
+     * @throws IllegalArgumentException if threshold is not positive
+     */
+    public ParallelEvaluator(Executor executor, int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.executor = Objects.requireNonNull(
+            executor,
+            "Executor cannot be null"
+        );
+        this.threshold = threshold;
+    }
+
+    /**
+     * Gets the evaluator running on the common fork/join pool with
+     * {@link #DEFAULT_THRESHOLD}.
+     *
+     * @return the shared default evaluator
+     */
+    public static ParallelEvaluator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the minimum number of rows split across threads.
+     *
+     * @return the threshold
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Evaluates every row of the columns into {@code out}, like
+     * {@link Expr#evaluateBatch(double[][], double[])}.
+     *
+     * @param expr the bound expression
+     * @param columns variable columns indexed by slot
+     * @param out the output array; its length is the number of rows
+     * @throws IllegalArgumentException if a column is missing or too short
+     * @throws IllegalStateException if a variable is not bound to a slot
+     */
+    public void evaluate(Expr expr, double[][] columns, double[] out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Output cannot be null");
+        }
+        evaluate(expr, columns, out, 0, out.length);
+    }
+
+    /**
+     * Evaluates rows {@code [fromRow, toRow)} of the columns into the same
+     * rows of {@code out}, like
+     * {@link Expr#evaluateBatch(double[][], double[], int, int)}.
+     *
+     * @param expr the bound expression
+     * @param columns variable columns indexed by slot
+     * @param out the output array
+     * @param fromRow first row, inclusive
+     * @param toRow last row, exclusive
+     * @throws IndexOutOfBoundsException if the row range is invalid
+     */
+    public void evaluate(
+        Expr expr,
+        double[][] columns,
+        double[] out,
+        int fromRow,
+        int toRow
+    ) {
+        BatchEvaluator.check(expr, columns, out, fromRow, toRow);
+        run(fromRow, toRow, (from, to) ->
+            BatchEvaluator.evaluateUnchecked(expr, columns, out, from, to)
+        );
+    }
+
+    /**
+     * Applies a function to every value, writing {@code out[i] =
+     * function(values[i])}. Any single-variable evaluator fits, for example
+     * {@code Function::evaluate} or a {@link CompiledExpr}. The function is
+     * called from several threads at once and must be thread-safe.
+     *
+     * @param function the function to apply
+     * @param values the input values
+     * @param out the output array, at least as long as values
+     * @throws IllegalArgumentException if out is shorter than values
+     */
+    public void evaluate(
+        DoubleUnaryOperator function,
+        double[] values,
+        double[] out
+    ) {
+        Objects.requireNonNull(function, "Function cannot be null");
+        checkArrays(values, out);
+        run(0, values.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                out[i] = function.applyAsDouble(values[i]);
+            }
+        });
+    }
+
+    private static void checkArrays(double[] values, double[] out) {
+        if (values == null || out == null) {
+            throw new IllegalArgumentException(
+                "Values and output cannot be null"
+            );
+        }
+        if (out.length < values.length) {
+            throw new IllegalArgumentException(
+                "Output has " + out.length + " rows, expected at least " +
+                values.length
+            );
+        }
+    }
+
+    private void run(int from, int to, Range range) {
+        int rows = to - from;
+        if (rows < threshold) {
+            range.evaluate(from, to);
+            return;
+        }
+
+        int chunkSize = chunkSize(rows);
+        int chunks = (rows + chunkSize - 1) / chunkSize;
+        Throwable[] failures = new Throwable[chunks];
+        Chunks work = new Chunks(from, to, chunkSize, range, failures);
+
+        if (executor instanceof ForkJoinPool) {
+            ((ForkJoinPool) executor).invoke(new ChunkTask(work, 0, chunks));
+        } else {
+            runOnExecutor(work, chunks);
+        }
+
+        for (Throwable failure : failures) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    /**
+     * Aims at a few chunks per worker, each a whole number of batch blocks
+     * so that chunk boundaries fall on the blocks a sequential run uses.
+     */
+    private int chunkSize(int rows) {
+        int workers = executor instanceof ForkJoinPool
+            ? ((ForkJoinPool) executor).getParallelism()
+            : Runtime.getRuntime().availableProcessors();
+        long target = Math.max(1, workers) * (long) CHUNKS_PER_WORKER;
+        long size = (rows + target - 1) / target;
+        long block = BatchEvaluator.BLOCK_SIZE;
+        return (int) Math.min(rows, (size + block - 1) / block * block);
+    }
+
+    /**
+     * Submits all chunks but the last, runs the last one on the calling
+     * thread, then waits for the others.
+     */
+    private void runOnExecutor(Chunks work, int chunks) {
+        CountDownLatch done = new CountDownLatch(chunks - 1);
+        for (int i = 0; i < chunks - 1; i++) {
+            int chunk = i;
+            try {
+                executor.execute(() -> {
+                    try {
+                        work.run(chunk);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Rejected: run it here instead.
+                work.run(chunk);
+                done.countDown();
+            }
+        }
+        work.run(chunks - 1);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Evaluates the rows {@code [from, to)}.
+     */
+    @FunctionalInterface
+    private interface Range {
+        void evaluate(int from, int to);
+    }
+
+    private static final class Chunks {
+
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final Range range;
+        private final Throwable[] failures;
+
+        Chunks(
+            int from,
+            int to,
+            int chunkSize,
+            Range range,
+            Throwable[] failures
+        ) {
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.range = range;
+            this.failures = failures;
+        }
+
+        void run(int chunk) {
+            int start = (int) (from + (long) chunk * chunkSize);
+            int end = (int) Math.min(to, (long) start + chunkSize);
+            try {
+                range.evaluate(start, end);
+            } catch (RuntimeException | Error e) {
+                failures[chunk] = e;
+            }
+        }
+    }
+
+    /**
+     * Runs chunks {@code [lo, hi)}, halving the range until one is left.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Chunks work;
+        private final int lo;
+        private final int hi;
+
+        ChunkTask(Chunks work, int lo, int hi) {
+            this.work = work;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                work.run(lo);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ChunkTask(work, lo, mid), new ChunkTask(work, mid, hi));
+        }
+    }
+}
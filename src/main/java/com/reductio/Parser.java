@@ -1,7 +1,6 @@
 package com.reductio;
 
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * Parser for converting mathematical expressions from string to AST.
@@ -13,29 +12,19 @@ import java.util.regex.Pattern;
  */
 public final class Parser {
 
-    private static final Set<String> SUPPORTED_FUNCTIONS = Set.of(
-        "ln",
-        "log",
-        "sin",
-        "cos",
-        "tan",
-        "sec",
-        "csc",
-        "cot",
-        "sinh",
-        "cosh",
-        "tanh",
-        "sqrt",
-        "abs"
-    );
-
-    private static final Pattern NUMBER_PATTERN = Pattern.compile(
-        "-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"
-    );
-
-    private static final Pattern VARIABLE_PATTERN = Pattern.compile(
-        "[a-zA-Z][a-zA-Z0-9]*"
-    );
+    /** Operator stack marker; compared by reference, names never alias it. */
+    private static final String LEFT_PAREN = "(";
+
+    /** Integer mantissas up to this many digits are exact in a double. */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    private static volatile ExprCache cache;
+    private static volatile ExprInterner interner;
 
     private Parser() {
         // Utility class
@@ -44,19 +33,58 @@ public final class Parser {
     /**
      * Parses a mathematical expression string into an expression tree.
      *
+     * <p>The input is read in a single pass: whitespace, implicit
+     * multiplication ({@code 2x}, {@code (x+1)(x-1)}) and unary minus are
+     * resolved by the lexer while tokens are fed straight into the
+     * shunting-yard loop, so no normalized copy of the input is built.
+     *
+     * <p>If a cache has been installed with {@link #setCache(ExprCache)},
+     * the tree may be a shared instance returned by earlier calls. If an
+     * interner has been installed with {@link #setInterner(ExprInterner)},
+     * its nodes are canonical.
+     *
      * @param expression the mathematical expression as a string
      * @return the parsed expression tree
      * @throws ParseException if the expression is invalid
      */
     public static Expr parse(String expression) {
-        if (expression == null || expression.trim().isEmpty()) {
+        ExprCache active = cache;
+        if (active != null) {
+            return active.parse(expression);
+        }
+        return parseUncached(expression);
+    }
+
+    /**
+     * Parses an expression, resolving each variable to a slot of the given
+     * bindings as it is read. Names the bindings do not know yet get new
+     * slots. The result can be evaluated with
+     * {@link Expr#evaluate(Bindings)} without any name lookups.
+     *
+     * <p>Parsing with bindings bypasses the cache, since the slots depend on
+     * the bindings.
+     *
+     * @param expression the mathematical expression as a string
+     * @param bindings the bindings holding the slot layout
+     * @return the parsed expression tree with bound variables
+     * @throws ParseException if the expression is invalid
+     */
+    public static Expr parse(String expression, Bindings bindings) {
+        Objects.requireNonNull(bindings, "Bindings cannot be null");
+        return parseUncached(expression, bindings);
+    }
+
+    static Expr parseUncached(String expression) {
+        return parseUncached(expression, null);
+    }
+
+    private static Expr parseUncached(String expression, Bindings bindings) {
+        if (expression == null || isBlank(expression)) {
             throw new ParseException("Expression cannot be null or empty");
         }
 
         try {
-            String normalized = normalizeExpression(expression);
-            List<Token> tokens = tokenize(normalized);
-            return parseTokens(tokens);
+            return parseTokens(new Lexer(expression), bindings, interner);
         } catch (Exception e) {
             throw new ParseException(
                 "Failed to parse expression: " + expression,
@@ -81,204 +109,121 @@ public final class Parser {
     }
 
     /**
-     * Gets the set of supported function names.
+     * Installs a cache behind {@link #parse(String)} and
+     * {@link Reduction#simplify(String)}.
      *
-     * @return immutable set of function names
+     * @param exprCache the cache to use, or null to disable caching
      */
-    public static Set<String> getSupportedFunctions() {
-        return SUPPORTED_FUNCTIONS;
+    public static void setCache(ExprCache exprCache) {
+        cache = exprCache;
     }
 
-    private static String normalizeExpression(String expression) {
-        String normalized = expression.replaceAll("\\s+", "");
-        normalized = insertImplicitMultiplication(normalized);
-        normalized = handleUnaryMinus(normalized);
-        return normalized;
-    }
-
-    private static String insertImplicitMultiplication(String expression) {
-        StringBuilder result = new StringBuilder();
-
-        for (int i = 0; i < expression.length(); i++) {
-            char current = expression.charAt(i);
-            result.append(current);
-
-            if (i < expression.length() - 1) {
-                char next = expression.charAt(i + 1);
-
-                if (shouldInsertMultiplication(current, next, expression, i)) {
-                    result.append('*');
-                }
-            }
-        }
-
-        return result.toString();
-    }
-
-    private static boolean shouldInsertMultiplication(
-        char current,
-        char next,
-        String expression,
-        int position
-    ) {
-        // Number followed by letter or opening parenthesis
-        if (
-            Character.isDigit(current) &&
-            (Character.isLetter(next) || next == '(')
-        ) {
-            return true;
-        }
-
-        // Closing parenthesis followed by digit, letter, or opening parenthesis
-        if (
-            current == ')' &&
-            (Character.isDigit(next) || Character.isLetter(next) || next == '(')
-        ) {
-            return true;
-        }
-
-        // Letter followed by digit or opening parenthesis (but not if it's a function)
-        if (
-            Character.isLetter(current) &&
-            (Character.isDigit(next) || next == '(')
-        ) {
-            String beforeNext = expression.substring(0, position + 1);
-            return !endsWithFunction(beforeNext);
-        }
-
-        return false;
+    /**
+     * Gets the cache installed with {@link #setCache(ExprCache)}.
+     *
+     * @return the active cache, or null if caching is disabled
+     */
+    public static ExprCache getCache() {
+        return cache;
     }
 
-    private static boolean endsWithFunction(String str) {
-        for (String function : SUPPORTED_FUNCTIONS) {
-            if (str.endsWith(function)) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Installs an interner: {@link #parse(String)} and
+     * {@link #parse(String, Bindings)} then build every node through it, so
+     * repeated subtrees within and across formulas are shared.
+     *
+     * @param exprInterner the interner to use, or null to build fresh nodes
+     */
+    public static void setInterner(ExprInterner exprInterner) {
+        interner = exprInterner;
     }
 
-    private static String handleUnaryMinus(String expression) {
-        StringBuilder result = new StringBuilder();
-        boolean expectOperand = true;
-
-        for (int i = 0; i < expression.length(); i++) {
-            char current = expression.charAt(i);
-
-            if (current == '-' && expectOperand) {
-                result.append("0-");
-            } else {
-                result.append(current);
-            }
-
-            expectOperand = (current == '(' || isOperator(current));
-        }
-
-        return result.toString();
+    /**
+     * Gets the interner installed with {@link #setInterner(ExprInterner)}.
+     *
+     * @return the active interner, or null if nodes are not interned
+     */
+    public static ExprInterner getInterner() {
+        return interner;
     }
 
-    private static List<Token> tokenize(String expression) {
-        List<Token> tokens = new ArrayList<>();
-        StringBuilder buffer = new StringBuilder();
-
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-
-            if (Character.isDigit(c) || c == '.') {
-                buffer.append(c);
-            } else if (Character.isLetter(c)) {
-                if (buffer.length() > 0 && isNumber(buffer.toString())) {
-                    tokens.add(new Token(TokenType.NUMBER, buffer.toString()));
-                    buffer.setLength(0);
-                }
-                buffer.append(c);
-            } else {
-                if (buffer.length() > 0) {
-                    String value = buffer.toString();
-                    if (isNumber(value)) {
-                        tokens.add(new Token(TokenType.NUMBER, value));
-                    } else if (SUPPORTED_FUNCTIONS.contains(value)) {
-                        tokens.add(new Token(TokenType.FUNCTION, value));
-                    } else {
-                        tokens.add(new Token(TokenType.VARIABLE, value));
-                    }
-                    buffer.setLength(0);
-                }
-
-                TokenType type = getTokenType(c);
-                tokens.add(new Token(type, String.valueOf(c)));
-            }
-        }
-
-        if (buffer.length() > 0) {
-            String value = buffer.toString();
-            if (isNumber(value)) {
-                tokens.add(new Token(TokenType.NUMBER, value));
-            } else if (SUPPORTED_FUNCTIONS.contains(value)) {
-                tokens.add(new Token(TokenType.FUNCTION, value));
-            } else {
-                tokens.add(new Token(TokenType.VARIABLE, value));
-            }
-        }
-
-        return tokens;
+    /**
+     * Gets the set of supported function names.
+     *
+     * @return immutable set of function names
+     * @see FunctionRegistry
+     */
+    public static Set<String> getSupportedFunctions() {
+        return FunctionRegistry.getNames();
     }
 
-    private static Expr parseTokens(List<Token> tokens) {
-        if (tokens.isEmpty()) {
-            throw new ParseException("Empty token list");
-        }
-
-        Stack<Expr> operands = new Stack<>();
-        Stack<Token> operators = new Stack<>();
+    private static Expr parseTokens(
+        Lexer lexer,
+        Bindings bindings,
+        ExprInterner interner
+    ) {
+        Deque<Expr> operands = new ArrayDeque<>();
+        Deque<String> operators = new ArrayDeque<>();
 
-        for (Token token : tokens) {
-            switch (token.getType()) {
+        for (
+            TokenType type = lexer.next();
+            type != null;
+            type = lexer.next()
+        ) {
+            switch (type) {
                 case NUMBER:
+                    double number = lexer.number();
                     operands.push(
-                        new Constant(Double.parseDouble(token.getValue()))
+                        interner == null
+                            ? new Constant(number)
+                            : interner.constant(number)
                     );
                     break;
                 case VARIABLE:
-                    operands.push(new Variable(token.getValue()));
+                    String name = lexer.text();
+                    int slot = bindings == null ? -1 : bindings.resolve(name);
+                    operands.push(
+                        interner == null
+                            ? new Variable(name, slot)
+                            : interner.variable(name, slot)
+                    );
                     break;
                 case FUNCTION:
-                    operators.push(token);
+                    operators.push(lexer.text());
                     break;
                 case LEFT_PAREN:
-                    operators.push(token);
+                    operators.push(LEFT_PAREN);
                     break;
                 case RIGHT_PAREN:
                     while (
-                        !operators.isEmpty() &&
-                        operators.peek().getType() != TokenType.LEFT_PAREN
+                        !operators.isEmpty() && operators.peek() != LEFT_PAREN
                     ) {
-                        applyOperator(operands, operators.pop());
+                        applyOperator(operands, operators.pop(), interner);
                     }
                     if (!operators.isEmpty()) {
                         operators.pop(); // Remove left parenthesis
                     }
                     if (
-                        !operators.isEmpty() &&
-                        operators.peek().getType() == TokenType.FUNCTION
+                        !operators.isEmpty() && isFunction(operators.peek())
                     ) {
-                        applyOperator(operands, operators.pop());
+                        applyOperator(operands, operators.pop(), interner);
                     }
                     break;
                 case OPERATOR:
+                    String operator = lexer.text();
                     while (
                         !operators.isEmpty() &&
-                        shouldApplyOperator(token, operators.peek())
+                        shouldApplyOperator(operator, operators.peek())
                     ) {
-                        applyOperator(operands, operators.pop());
+                        applyOperator(operands, operators.pop(), interner);
                     }
-                    operators.push(token);
+                    operators.push(operator);
                     break;
             }
         }
 
         while (!operators.isEmpty()) {
-            applyOperator(operands, operators.pop());
+            applyOperator(operands, operators.pop(), interner);
         }
 
         if (operands.size() != 1) {
@@ -288,14 +233,25 @@ public final class Parser {
         return operands.pop();
     }
 
-    private static void applyOperator(Stack<Expr> operands, Token operator) {
-        if (operator.getType() == TokenType.FUNCTION) {
+    private static void applyOperator(
+        Deque<Expr> operands,
+        String operator,
+        ExprInterner interner
+    ) {
+        if (operator == LEFT_PAREN) {
+            return;
+        }
+        if (isFunction(operator)) {
             if (operands.isEmpty()) {
                 throw new ParseException("Function requires an argument");
             }
             Expr arg = operands.pop();
-            operands.push(new FunctionExpr(operator.getValue(), arg));
-        } else if (operator.getType() == TokenType.OPERATOR) {
+            operands.push(
+                interner == null
+                    ? new FunctionExpr(operator, arg)
+                    : interner.function(operator, arg)
+            );
+        } else {
             if (operands.size() < 2) {
                 throw new ParseException(
                     "Binary operator requires two operands"
@@ -303,55 +259,73 @@ public final class Parser {
             }
             Expr right = operands.pop();
             Expr left = operands.pop();
-            operands.push(new BinaryOp(operator.getValue(), left, right));
+            // The one place the symbol is resolved; the tree keeps opcodes.
+            int opcode = BinaryOp.opcode(operator);
+            operands.push(
+                interner == null
+                    ? new BinaryOp(opcode, left, right)
+                    : interner.binary(opcode, left, right)
+            );
         }
     }
 
-    private static boolean shouldApplyOperator(Token current, Token top) {
-        if (top.getType() == TokenType.LEFT_PAREN) {
+    private static boolean shouldApplyOperator(String current, String top) {
+        if (top == LEFT_PAREN || isFunction(top)) {
             return false;
         }
 
-        if (top.getType() == TokenType.FUNCTION) {
-            return false;
-        }
-
-        if (
-            current.getType() != TokenType.OPERATOR ||
-            top.getType() != TokenType.OPERATOR
-        ) {
-            return false;
-        }
-
-        int currentPrec = getOperatorPrecedence(current.getValue());
-        int topPrec = getOperatorPrecedence(top.getValue());
+        int currentPrec = getOperatorPrecedence(current);
+        int topPrec = getOperatorPrecedence(top);
 
         return (
             topPrec > currentPrec ||
-            (topPrec == currentPrec && isLeftAssociative(current.getValue()))
+            (topPrec == currentPrec && isLeftAssociative(current))
         );
     }
 
-    private static boolean isNumber(String str) {
-        return NUMBER_PATTERN.matcher(str).matches();
+    /**
+     * Operators on the stack are the interned one-character symbols, and
+     * {@link FunctionRegistry} only accepts names of two letters or more.
+     */
+    private static boolean isFunction(String entry) {
+        return entry.length() > 1;
+    }
+
+    private static boolean isBlank(CharSequence str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (!Character.isWhitespace(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static boolean isOperator(char c) {
-        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+    /**
+     * Whitespace as matched by the regex {@code \s} class.
+     */
+    private static boolean isSpace(char c) {
+        return (
+            c == ' ' ||
+            c == '\t' ||
+            c == '\n' ||
+            c == '\u000B' ||
+            c == '\f' ||
+            c == '\r'
+        );
     }
 
-    private static TokenType getTokenType(char c) {
+    private static String operatorSymbol(char c) {
         switch (c) {
             case '+':
+                return "+";
             case '-':
+                return "-";
             case '*':
+                return "*";
             case '/':
+                return "/";
             case '^':
-                return TokenType.OPERATOR;
-            case '(':
-                return TokenType.LEFT_PAREN;
-            case ')':
-                return TokenType.RIGHT_PAREN;
+                return "^";
             default:
                 throw new ParseException("Unknown character: " + c);
         }
@@ -385,27 +359,238 @@ public final class Parser {
         RIGHT_PAREN,
     }
 
-    private static class Token {
+    /**
+     * Single-pass lexer over the raw input.
+     *
+     * <p>Whitespace is transparent (it may even split a name or a number,
+     * exactly as if it had been stripped beforehand). Implicit
+     * multiplication is reported as a synthetic {@code *} operator whenever
+     * an operand is directly followed by the start of another one, and a
+     * unary minus is reported as the constant {@code 0} followed by the
+     * regular {@code -} operator.
+     */
+    private static final class Lexer {
+
+        private final CharSequence input;
+        private final int length;
+        private int pos;
+        private TokenType last;
+        private String text;
+        private double number;
+
+        Lexer(CharSequence input) {
+            this.input = input;
+            this.length = input.length();
+        }
+
+        /**
+         * Advances to the next token.
+         *
+         * @return the token type, or {@code null} at the end of the input
+         */
+        TokenType next() {
+            skipSpaces();
+            if (pos >= length) {
+                return null;
+            }
+
+            char c = input.charAt(pos);
+
+            if (
+                (last == TokenType.NUMBER ||
+                    last == TokenType.VARIABLE ||
+                    last == TokenType.RIGHT_PAREN) &&
+                (Character.isDigit(c) || Character.isLetter(c) || c == '(')
+            ) {
+                text = "*";
+                return last = TokenType.OPERATOR;
+            }
+
+            if (
+                c == '-' &&
+                (last == null ||
+                    last == TokenType.LEFT_PAREN ||
+                    last == TokenType.OPERATOR)
+            ) {
+                // Unary minus: emit 0 now, the '-' itself on the next call.
+                number = 0;
+                return last = TokenType.NUMBER;
+            }
+
+            if (Character.isDigit(c) || c == '.') {
+                scanNumber();
+                return last = TokenType.NUMBER;
+            }
+
+            if (Character.isLetter(c)) {
+                return last = scanName();
+            }
+
+            pos++;
+            if (c == '(') {
+                return last = TokenType.LEFT_PAREN;
+            }
+            if (c == ')') {
+                return last = TokenType.RIGHT_PAREN;
+            }
+            text = operatorSymbol(c);
+            return last = TokenType.OPERATOR;
+        }
+
+        /**
+         * Name of the current VARIABLE or FUNCTION token, or the interned
+         * symbol of the current OPERATOR token.
+         */
+        String text() {
+            return text;
+        }
+
+        /**
+         * Value of the current NUMBER token.
+         */
+        double number() {
+            return number;
+        }
+
+        private void skipSpaces() {
+            while (pos < length && isSpace(input.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private TokenType scanName() {
+            int start = pos;
+            int end = scanRun(false);
+            String name = slice(start, end);
+            // One trie walk answers both "is a function" and "ends with one"
+            int suffix = FunctionRegistry.longestSuffix(name);
+
+            if (suffix == name.length()) {
+                skipSpaces();
+                if (pos < length && Character.isDigit(input.charAt(pos))) {
+                    // "sin2x" has always read as the variable sin2 times x
+                    text = slice(start, scanRun(true));
+                    return TokenType.VARIABLE;
+                }
+                text = name;
+                return TokenType.FUNCTION;
+            }
+
+            skipSpaces();
+            if (pos < length && suffix > 0) {
+                char next = input.charAt(pos);
+                if (next == '(') {
+                    throw new ParseException("Unknown function: " + name);
+                }
+                if (Character.isDigit(next)) {
+                    text = slice(start, scanRun(true));
+                    return TokenType.VARIABLE;
+                }
+            }
+
+            text = name;
+            return TokenType.VARIABLE;
+        }
 
-        private final TokenType type;
-        private final String value;
+        private void scanNumber() {
+            int start = pos;
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = 0;
+            int dots = 0;
+            char lastChar = 0;
+
+            while (pos < length) {
+                char c = input.charAt(pos);
+                if (Character.isDigit(c)) {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                    }
+                    digits++;
+                    if (dots > 0) {
+                        fractionDigits++;
+                    }
+                } else if (c == '.') {
+                    dots++;
+                } else if (!isSpace(c)) {
+                    break;
+                }
+                if (!isSpace(c)) {
+                    lastChar = c;
+                }
+                pos++;
+            }
 
-        public Token(TokenType type, String value) {
-            this.type = type;
-            this.value = value;
+            if (
+                dots > 1 || input.charAt(start) == '.' || lastChar == '.'
+            ) {
+                throw new ParseException(
+                    "Invalid number: " + slice(start, pos)
+                );
+            }
+
+            if (
+                digits <= MAX_EXACT_DIGITS &&
+                fractionDigits < POWERS_OF_TEN.length &&
+                isAsciiDigits(start, pos)
+            ) {
+                // Both operands are exact doubles, so the single division
+                // is correctly rounded and matches Double.parseDouble.
+                number = mantissa / POWERS_OF_TEN[fractionDigits];
+            } else {
+                number = Double.parseDouble(slice(start, pos));
+            }
         }
 
-        public TokenType getType() {
-            return type;
+        /**
+         * Consumes a run of letters (or of digits) together with any
+         * whitespace between them.
+         *
+         * @return the end index of the last consumed non-space character
+         */
+        private int scanRun(boolean digits) {
+            int end = pos;
+            while (pos < length) {
+                char c = input.charAt(pos);
+                if (digits ? Character.isDigit(c) : Character.isLetter(c)) {
+                    end = ++pos;
+                } else if (isSpace(c)) {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            pos = end;
+            return end;
         }
 
-        public String getValue() {
-            return value;
+        private boolean isAsciiDigits(int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = input.charAt(i);
+                if (c > '9' && c != '.' && !isSpace(c)) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        @Override
-        public String toString() {
-            return type + "(" + value + ")";
+        /**
+         * Copies {@code [start, end)} without the whitespace inside it.
+         */
+        private String slice(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (isSpace(input.charAt(i))) {
+                    StringBuilder sb = new StringBuilder(end - start);
+                    for (int j = start; j < end; j++) {
+                        char c = input.charAt(j);
+                        if (!isSpace(c)) {
+                            sb.append(c);
+                        }
+                    }
+                    return sb.toString();
+                }
+            }
+            return input.subSequence(start, end).toString();
         }
     }
 
@@ -0,0 +1,284 @@
+package com.reductio;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Polynomials in one variable, held as dense coefficient arrays in
+ * ascending order: {@code coefficients[i]} multiplies {@code x^i}.
+ *
+ * <p>{@link #coefficients(Expr, String)} collects the coefficients of an
+ * expression built from constants, the variable, {@code +}, {@code -},
+ * {@code *}, division by constants and non-negative integer powers.
+ * {@link #horner(Expr, String)} rebuilds such an expression in Horner
+ * form, which needs one multiplication and one addition per degree and
+ * no {@code ^} at all:
+ *
+ * <pre>{@code
+ * Expr expr = Parser.parse("2x^3 - 3x^2 + x - 4");
+ * Expr horner = Polynomials.horner(expr, "x"); // ((2x - 3)x + 1)x - 4
+ * double[] c = Polynomials.coefficients(expr, "x"); // { -4, 1, -3, 2 }
+ * double y = Polynomials.evaluate(c, 1.5);
+ * }</pre>
+ *
+ * <p>{@link #evaluate(double[], double)} runs the Horner loop with
+ * {@link Math#fma} when the JVM compiles it to a hardware instruction, so
+ * every step rounds once instead of twice. Without hardware support
+ * {@code Math.fma} is emulated and very slow, so a plain multiply and add
+ * is used instead; the system property {@code reductio.fma} overrides the
+ * detection. Horner form is kept over Estrin's scheme even for high
+ * degrees: bulk evaluation already overlaps the independent dependency
+ * chains of consecutive points, and Horner's error bound is the tighter.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class Polynomials {
+
+    /** Largest degree {@link #coefficients(Expr, String)} expands to. */
+    public static final int MAX_DEGREE = 64;
+
+    private Polynomials() {}
+
+    /**
+     * Collects the coefficients of a polynomial in one variable.
+     * Coefficients are computed with double arithmetic, so they may be
+     * rounded differently from a term-by-term evaluation of the tree.
+     *
+     * @param expr the expression
+     * @param variable the variable name
+     * @return the coefficients in ascending order, without zero leading
+     *         coefficients; null if the expression is not a polynomial in
+     *         the variable with constant coefficients, or its degree
+     *         exceeds {@link #MAX_DEGREE}
+     */
+    public static double[] coefficients(Expr expr, String variable) {
+        double[] coefficients = collect(expr, variable);
+        if (coefficients == null) {
+            return null;
+        }
+        int length = coefficients.length;
+        while (length > 1 && coefficients[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.copyOf(coefficients, length);
+    }
+
+    /**
+     * Rebuilds a polynomial in Horner form.
+     *
+     * @param expr the expression
+     * @param variable the variable name
+     * @return the Horner form, or {@code expr} itself if it is not a
+     *         polynomial (see {@link #coefficients(Expr, String)})
+     */
+    public static Expr horner(Expr expr, String variable) {
+        double[] coefficients = coefficients(expr, variable);
+        return coefficients == null ? expr : horner(coefficients, variable);
+    }
+
+    /**
+     * Builds the Horner form of a polynomial. Zero terms are left out.
+     *
+     * @param coefficients the coefficients in ascending order
+     * @param variable the variable name
+     * @return the expression
+     * @throws IllegalArgumentException if there are no coefficients
+     */
+    public static Expr horner(double[] coefficients, String variable) {
+        if (coefficients == null || coefficients.length == 0) {
+            throw new IllegalArgumentException(
+                "Coefficients cannot be null or empty"
+            );
+        }
+        int degree = coefficients.length - 1;
+        while (degree > 0 && coefficients[degree] == 0) {
+            degree--;
+        }
+
+        Expr x = new Variable(variable);
+        Expr result = new Constant(coefficients[degree]);
+        for (int i = degree - 1; i >= 0; i--) {
+            result = coefficients[i + 1] == 1 && i == degree - 1
+                ? x
+                : new BinaryOp("*", result, x);
+            double coefficient = coefficients[i];
+            if (coefficient < 0) {
+                result = new BinaryOp("-", result, new Constant(-coefficient));
+            } else if (coefficient != 0) {
+                result = new BinaryOp("+", result, new Constant(coefficient));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates a polynomial with Horner's rule, fused where supported.
+     *
+     * @param coefficients the coefficients in ascending order
+     * @param x the value of the variable
+     * @return the value of the polynomial; 0 if there are no coefficients
+     */
+    public static double evaluate(double[] coefficients, double x) {
+        int i = coefficients.length - 1;
+        if (i < 0) {
+            return 0;
+        }
+        double result = coefficients[i];
+        while (--i >= 0) {
+            result = multiplyAdd(result, x, coefficients[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Computes {@code a * b + c}, with a single rounding when the hardware
+     * has a fused multiply-add.
+     *
+     * @param a the first factor
+     * @param b the second factor
+     * @param c the addend
+     * @return the result
+     */
+    public static double multiplyAdd(double a, double b, double c) {
+        return Fma.ENABLED ? Math.fma(a, b, c) : a * b + c;
+    }
+
+    private static double[] collect(Expr expr, String variable) {
+        if (expr instanceof Constant) {
+            return new double[] { ((Constant) expr).getValue() };
+        }
+        if (expr instanceof Variable) {
+            return ((Variable) expr).hasName(variable)
+                ? new double[] { 0, 1 }
+                : null;
+        }
+        if (!(expr instanceof BinaryOp)) {
+            return null;
+        }
+
+        BinaryOp binOp = (BinaryOp) expr;
+        double[] left = collect(binOp.getLeft(), variable);
+        if (left == null) {
+            return null;
+        }
+        if (binOp.getOpcode() == PostfixProgram.POW) {
+            if (left.length == 1 && binOp.getRight() instanceof Constant) {
+                double power = ((Constant) binOp.getRight()).getValue();
+                return new double[] { Math.pow(left[0], power) };
+            }
+            int exponent = exponent(binOp.getRight());
+            if (exponent < 0 || (long) degree(left) * exponent > MAX_DEGREE) {
+                return null;
+            }
+            double[] result = { 1 };
+            for (int i = 0; i < exponent; i++) {
+                result = multiply(result, left);
+            }
+            return result;
+        }
+
+        double[] right = collect(binOp.getRight(), variable);
+        if (right == null) {
+            return null;
+        }
+        switch (binOp.getOpcode()) {
+            case PostfixProgram.ADD:
+                return add(left, right, 1);
+            case PostfixProgram.SUB:
+                return add(left, right, -1);
+            case PostfixProgram.MUL:
+                if (degree(left) + degree(right) > MAX_DEGREE) {
+                    return null;
+                }
+                return multiply(left, right);
+            case PostfixProgram.DIV:
+                if (degree(right) > 0 || Math.abs(right[0]) < 1e-10) {
+                    return null; // not a polynomial, or division by zero
+                }
+                double[] result = new double[left.length];
+                for (int i = 0; i < left.length; i++) {
+                    result[i] = left[i] / right[0];
+                }
+                return result;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the exponent if it is a non-negative integer constant,
+     * otherwise -1.
+     */
+    private static int exponent(Expr expr) {
+        if (!(expr instanceof Constant)) {
+            return -1;
+        }
+        double value = ((Constant) expr).getValue();
+        return value >= 0 && value <= MAX_DEGREE && value == (int) value
+            ? (int) value
+            : -1;
+    }
+
+    private static int degree(double[] coefficients) {
+        int degree = coefficients.length - 1;
+        while (degree > 0 && coefficients[degree] == 0) {
+            degree--;
+        }
+        return degree;
+    }
+
+    private static double[] add(double[] left, double[] right, int sign) {
+        double[] result = new double[Math.max(left.length, right.length)];
+        for (int i = 0; i < left.length; i++) {
+            result[i] = left[i];
+        }
+        for (int i = 0; i < right.length; i++) {
+            result[i] += sign * right[i];
+        }
+        return result;
+    }
+
+    private static double[] multiply(double[] left, double[] right) {
+        int leftLength = degree(left) + 1;
+        int rightLength = degree(right) + 1;
+        double[] result = new double[leftLength + rightLength - 1];
+        for (int i = 0; i < leftLength; i++) {
+            for (int j = 0; j < rightLength; j++) {
+                result[i + j] += left[i] * right[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Detected on first use only: reading the VM option loads the
+     * management classes.
+     */
+    private static final class Fma {
+
+        static final boolean ENABLED = detect();
+
+        private static boolean detect() {
+            String property = System.getProperty("reductio.fma");
+            if (property != null) {
+                return Boolean.parseBoolean(property);
+            }
+            try {
+                HotSpotDiagnosticMXBean vm =
+                    ManagementFactory.getPlatformMXBean(
+                        HotSpotDiagnosticMXBean.class
+                    );
+                return (
+                    vm != null &&
+                    Boolean.parseBoolean(vm.getVMOption("UseFMA").getValue())
+                );
+            } catch (RuntimeException | LinkageError e) {
+                // Not HotSpot, or no such option on this platform.
+                return false;
+            }
+        }
+    }
+}
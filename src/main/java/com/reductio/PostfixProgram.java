@@ -0,0 +1,467 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An expression flattened to postfix instructions for a small stack machine.
+ *
+ * <p>The program is a flat {@code int[]}: the low 8 bits of each instruction
+ * hold the opcode and the remaining bits its operand (a constant pool index,
+ * a variable slot, or a function name index). Running it is a
+ * single loop over the array with an operand stack of {@link #getMaxStack()}
+ * doubles; no bytecode is generated, so it works wherever class definition
+ * is not allowed. Binary operations whose right operand is a constant or a
+ * variable read it directly ({@link #WITH_CONST}, {@link #WITH_LOAD}),
+ * which halves the instructions dispatched for typical formulas.
+ *
+ * <p>Repeated subtrees are computed once: the first occurrence is followed
+ * by a {@link #STORE} into a temporary kept after the operand stack, and
+ * later occurrences read it back with {@link #TEMP} or {@link #WITH_TEMP}.
+ * {@link Expr#compile()} uses it when bytecode generation fails or is
+ * disabled with {@code -Dreductio.bytecode=false}.
+ *
+ * <p>Results and exceptions match {@link Expr#evaluate(double[])}.
+ * Programs are immutable and thread-safe; each call gets its own stack
+ * unless one is passed to {@link #applyAsDouble(double[], double[])}.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class PostfixProgram extends CompiledExpr {
+
+    /** Push {@code constants[operand]}. */
+    public static final int CONST = 0;
+    /** Push {@code values[operand]}. */
+    public static final int LOAD = 1;
+    /** Pop b, pop a, push a + b. */
+    public static final int ADD = 2;
+    /** Pop b, pop a, push a - b. */
+    public static final int SUB = 3;
+    /** Pop b, pop a, push a * b. */
+    public static final int MUL = 4;
+    /** Pop b, pop a, push a / b; throws on a zero divisor. */
+    public static final int DIV = 5;
+    /** Pop b, pop a, push a ^ b. */
+    public static final int POW = 6;
+    /** Replace the top of the stack with its sine. */
+    public static final int SIN = 7;
+    /** Replace the top of the stack with its cosine. */
+    public static final int COS = 8;
+    /** Replace the top of the stack with its tangent. */
+    public static final int TAN = 9;
+    /** Replace the top of the stack with e raised to it. */
+    public static final int EXP = 10;
+    /** Replace the top of the stack with its absolute value. */
+    public static final int ABS = 11;
+    /** Replace the top of the stack with its natural logarithm. */
+    public static final int LN = 12;
+    /** Replace the top of the stack with its base-10 logarithm. */
+    public static final int LOG = 13;
+    /** Replace the top of the stack with its square root. */
+    public static final int SQRT = 14;
+    /**
+     * Replace the top of the stack with the registered function named
+     * {@code functionNames[operand]}.
+     */
+    public static final int UNKNOWN = 15;
+
+    /**
+     * Added to a binary opcode when its right operand is
+     * {@code constants[operand]} instead of the top of the stack.
+     */
+    public static final int WITH_CONST = 16;
+    /**
+     * Added to a binary opcode when its right operand is
+     * {@code values[operand]} instead of the top of the stack.
+     */
+    public static final int WITH_LOAD = 32;
+    /**
+     * Added to a binary opcode when its right operand is temporary
+     * {@code operand} instead of the top of the stack.
+     */
+    public static final int WITH_TEMP = 48;
+    /** Copy the top of the stack into temporary {@code operand}. */
+    public static final int STORE = 64;
+    /** Push temporary {@code operand}. */
+    public static final int TEMP = 65;
+
+    /** Bits of an instruction holding the opcode. */
+    public static final int OPCODE_MASK = 0xFF;
+    /** Shift of the operand within an instruction. */
+    public static final int OPERAND_SHIFT = 8;
+
+    private final int[] code;
+    private final double[] constants;
+    private final String[] functionNames;
+    private final int temporaryBase;
+    private final int maxStack;
+
+    private PostfixProgram(
+        Expr source,
+        List<String> variables,
+        Assembler assembler,
+        int stackDepth
+    ) {
+        super(source, variables);
+        this.code = assembler.code();
+        this.constants = assembler.constants();
+        this.functionNames = assembler.functionNames.toArray(new String[0]);
+        this.temporaryBase = stackDepth;
+        this.maxStack = stackDepth + assembler.temporaries.size();
+    }
+
+    /**
+     * Flattens a tree whose variables are bound to slots, after strength
+     * reduction and sharing repeated subtrees.
+     *
+     * @throws UnsupportedOperationException for node types it does not
+     *         know, or trees deeper than {@link DeepTrees#RECURSION_LIMIT}
+     * @throws IllegalStateException if a variable has no slot
+     */
+    static PostfixProgram of(Expr bound, List<String> variables) {
+        DeepTrees.requireShallow(bound, "flatten to a postfix program");
+        Expr dag = CommonSubexpressions.share(
+            StrengthReduction.reduce(bound)
+        );
+        Assembler assembler = new Assembler(
+            CommonSubexpressions.temporaries(dag)
+        );
+        int stackDepth = assembler.emit(dag);
+        return new PostfixProgram(bound, variables, assembler, stackDepth);
+    }
+
+    /**
+     * Gets a copy of the instructions.
+     *
+     * @return the postfix instructions
+     */
+    public int[] getCode() {
+        return code.clone();
+    }
+
+    /**
+     * Gets a copy of the constant pool.
+     *
+     * @return the constants referenced by {@link #CONST}
+     */
+    public double[] getConstants() {
+        return constants.clone();
+    }
+
+    /**
+     * Gets the size of the scratch array the program needs: the operand
+     * stack followed by one slot per shared subexpression.
+     *
+     * @return the scratch array length
+     */
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    @Override
+    public double applyAsDouble(double[] values) {
+        return applyAsDouble(values, new double[maxStack]);
+    }
+
+    /**
+     * Runs the program on a caller-supplied operand stack, so that hot
+     * loops allocate nothing.
+     *
+     * @param values variable values, ordered as {@link #getVariables()}
+     * @param stack scratch array of at least {@link #getMaxStack()} doubles,
+     *        holding the operand stack and the temporaries
+     * @return the evaluated result
+     * @throws ArrayIndexOutOfBoundsException if values or stack is too short
+     */
+    public double applyAsDouble(double[] values, double[] stack) {
+        // The top of the stack lives in a local; the array holds the rest.
+        double top = 0;
+        int sp = -1;
+        for (int instruction : code) {
+            int operand = instruction >>> OPERAND_SHIFT;
+            switch (instruction & OPCODE_MASK) {
+                case CONST:
+                    stack[++sp] = top;
+                    top = constants[operand];
+                    break;
+                case LOAD:
+                    stack[++sp] = top;
+                    top = values[operand];
+                    break;
+                case ADD:
+                    top = stack[sp--] + top;
+                    break;
+                case SUB:
+                    top = stack[sp--] - top;
+                    break;
+                case MUL:
+                    top = stack[sp--] * top;
+                    break;
+                case DIV:
+                    top = divide(stack[sp--], top);
+                    break;
+                case POW:
+                    top = Math.pow(stack[sp--], top);
+                    break;
+                case ADD + WITH_CONST:
+                    top += constants[operand];
+                    break;
+                case SUB + WITH_CONST:
+                    top -= constants[operand];
+                    break;
+                case MUL + WITH_CONST:
+                    top *= constants[operand];
+                    break;
+                case DIV + WITH_CONST:
+                    top = divide(top, constants[operand]);
+                    break;
+                case POW + WITH_CONST:
+                    top = Math.pow(top, constants[operand]);
+                    break;
+                case ADD + WITH_LOAD:
+                    top += values[operand];
+                    break;
+                case SUB + WITH_LOAD:
+                    top -= values[operand];
+                    break;
+                case MUL + WITH_LOAD:
+                    top *= values[operand];
+                    break;
+                case DIV + WITH_LOAD:
+                    top = divide(top, values[operand]);
+                    break;
+                case POW + WITH_LOAD:
+                    top = Math.pow(top, values[operand]);
+                    break;
+                case ADD + WITH_TEMP:
+                    top += stack[temporaryBase + operand];
+                    break;
+                case SUB + WITH_TEMP:
+                    top -= stack[temporaryBase + operand];
+                    break;
+                case MUL + WITH_TEMP:
+                    top *= stack[temporaryBase + operand];
+                    break;
+                case DIV + WITH_TEMP:
+                    top = divide(top, stack[temporaryBase + operand]);
+                    break;
+                case POW + WITH_TEMP:
+                    top = Math.pow(top, stack[temporaryBase + operand]);
+                    break;
+                case STORE:
+                    stack[temporaryBase + operand] = top;
+                    break;
+                case TEMP:
+                    stack[++sp] = top;
+                    top = stack[temporaryBase + operand];
+                    break;
+                case SIN:
+                    top = Math.sin(top);
+                    break;
+                case COS:
+                    top = Math.cos(top);
+                    break;
+                case TAN:
+                    top = Math.tan(top);
+                    break;
+                case EXP:
+                    top = Math.exp(top);
+                    break;
+                case ABS:
+                    top = Math.abs(top);
+                    break;
+                case LN:
+                    top = ln(top);
+                    break;
+                case LOG:
+                    top = log(top);
+                    break;
+                case SQRT:
+                    top = sqrt(top);
+                    break;
+                default:
+                    top = registeredFunction(top, functionNames[operand]);
+            }
+        }
+        return top;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PostfixProgram[");
+        for (int i = 0; i < code.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            int opcode = code[i] & OPCODE_MASK;
+            int operand = code[i] >>> OPERAND_SHIFT;
+            switch (opcode) {
+                case CONST:
+                    sb.append(constants[operand]);
+                    break;
+                case LOAD:
+                    sb.append(getVariables().get(operand));
+                    break;
+                case UNKNOWN:
+                    sb.append(functionNames[operand]);
+                    break;
+                case STORE:
+                    sb.append("=t").append(operand);
+                    break;
+                case TEMP:
+                    sb.append('t').append(operand);
+                    break;
+                default:
+                    if (opcode >= WITH_TEMP) {
+                        sb.append('t').append(operand).append(' ');
+                        opcode -= WITH_TEMP;
+                    } else if (opcode >= WITH_LOAD) {
+                        sb.append(getVariables().get(operand)).append(' ');
+                        opcode -= WITH_LOAD;
+                    } else if (opcode >= WITH_CONST) {
+                        sb.append(constants[operand]).append(' ');
+                        opcode -= WITH_CONST;
+                    }
+                    sb.append(MNEMONICS[opcode]);
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    /** Operator symbols and function names, indexed by opcode. */
+    static final String[] MNEMONICS = {
+        "const", "load", "+", "-", "*", "/", "^", "sin", "cos", "tan",
+        "exp", "abs", "ln", "log", "sqrt",
+    };
+
+    /**
+     * Emits the instructions of a tree in postfix order.
+     */
+    private static final class Assembler {
+
+        private int[] code = new int[16];
+        private int length;
+        private double[] constants = new double[8];
+        private int constantCount;
+        private final List<String> functionNames = new ArrayList<>();
+        private final Map<Expr, Integer> temporaries;
+        private final boolean[] stored;
+
+        Assembler(Map<Expr, Integer> temporaries) {
+            this.temporaries = temporaries;
+            this.stored = new boolean[temporaries.size()];
+        }
+
+        /**
+         * @return the stack depth needed by the emitted subtree
+         */
+        int emit(Expr node) {
+            Integer temporary = temporaries.get(node);
+            if (temporary == null) {
+                return emitNode(node);
+            }
+            if (stored[temporary]) {
+                add(TEMP, temporary);
+                return 1;
+            }
+            int depth = emitNode(node);
+            add(STORE, temporary);
+            stored[temporary] = true;
+            return depth;
+        }
+
+        private int emitNode(Expr node) {
+            if (node instanceof Constant) {
+                add(CONST, constant((Constant) node));
+                return 1;
+            }
+
+            if (node instanceof Variable) {
+                add(LOAD, slot((Variable) node));
+                return 1;
+            }
+
+            if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                int opcode = binOp.getOpcode();
+                int left = emit(binOp.getLeft());
+                Expr right = binOp.getRight();
+                if (right instanceof Constant) {
+                    add(opcode + WITH_CONST, constant((Constant) right));
+                    return left;
+                }
+                if (right instanceof Variable) {
+                    add(opcode + WITH_LOAD, slot((Variable) right));
+                    return left;
+                }
+                Integer temporary = temporaries.get(right);
+                if (temporary != null && stored[temporary]) {
+                    add(opcode + WITH_TEMP, temporary);
+                    return left;
+                }
+                int depth = Math.max(left, 1 + emit(right));
+                add(opcode, 0);
+                return depth;
+            }
+
+            if (node instanceof FunctionExpr) {
+                FunctionExpr function = (FunctionExpr) node;
+                int depth = emit(function.getArg());
+                int opcode = function.getOpcode();
+                if (opcode == UNKNOWN) {
+                    add(UNKNOWN, functionNames.size());
+                    functionNames.add(function.getName());
+                } else {
+                    add(opcode, 0);
+                }
+                return depth;
+            }
+
+            throw new UnsupportedOperationException(
+                node.getClass().getSimpleName() +
+                " cannot be flattened to a postfix program"
+            );
+        }
+
+        private int constant(Constant constant) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = constant.getValue();
+            return constantCount++;
+        }
+
+        private static int slot(Variable variable) {
+            if (variable.getSlot() < 0) {
+                throw new IllegalStateException(
+                    "Variable '" + variable.getName() + "' is not bound to a slot"
+                );
+            }
+            return variable.getSlot();
+        }
+
+        private void add(int opcode, int operand) {
+            if (operand >>> (Integer.SIZE - OPERAND_SHIFT) != 0) {
+                throw new IllegalStateException(
+                    "Operand " + operand + " does not fit an instruction"
+                );
+            }
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (operand << OPERAND_SHIFT) | opcode;
+        }
+
+        int[] code() {
+            return Arrays.copyOf(code, length);
+        }
+
+        double[] constants() {
+            return Arrays.copyOf(constants, constantCount);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.reductio;
+
+/**
+ * Tree evaluation that reports division by zero and domain errors as an
+ * {@link EvaluationStatus} flag instead of an exception. Once a flag is
+ * raised the remaining nodes are not computed: the result is NaN whatever
+ * the operators above would make of a NaN operand ({@code NaN ^ 0} is 1).
+ * Node types other than the built-in ones are evaluated as they are, and
+ * may throw. Trees deeper than {@link DeepTrees#RECURSION_LIMIT} are
+ * walked by {@link DeepTrees#evaluateOrNaN}.
+ */
+final class QuietEvaluation {
+
+    private final double[] values;
+    private int status;
+
+    private QuietEvaluation(double[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Evaluates a bound tree, returning NaN if any node fails.
+     */
+    static double evaluate(Expr root, double[] values) {
+        if (root.depth() > DeepTrees.RECURSION_LIMIT) {
+            return DeepTrees.evaluateOrNaN(root, values, null, 0);
+        }
+        QuietEvaluation evaluation = new QuietEvaluation(values);
+        double value = evaluation.value(root);
+        return evaluation.status == EvaluationStatus.OK ? value : Double.NaN;
+    }
+
+    private double value(Expr node) {
+        if (node instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) node;
+            double left = value(binOp.getLeft());
+            if (status != EvaluationStatus.OK) {
+                return Double.NaN;
+            }
+            double right = value(binOp.getRight());
+            if (status != EvaluationStatus.OK) {
+                return Double.NaN;
+            }
+            if (binOp.getOpcode() == PostfixProgram.DIV) {
+                status = EvaluationStatus.divide(right);
+                return left / right;
+            }
+            return binOp.apply(left, right);
+        }
+        if (node.getClass() == FunctionExpr.class) {
+            FunctionExpr function = (FunctionExpr) node;
+            double arg = value(function.getArg());
+            if (status != EvaluationStatus.OK) {
+                return Double.NaN;
+            }
+            status = EvaluationStatus.function(function.getOpcode(), arg);
+            return status == EvaluationStatus.OK
+                ? function.apply(arg)
+                : Double.NaN;
+        }
+        return node.evaluate(values);
+    }
+}
@@ -5,6 +5,10 @@ import java.util.*;
 public class Reduction {
 
     public static String simplify(String expr) {
+        ExprCache cache = Parser.getCache();
+        if (cache != null) {
+            return cache.simplify(expr).show();
+        }
         Expr ast = Parser.parse(expr);
         Expr simplified = ast.simplify();
         return simplified.show();
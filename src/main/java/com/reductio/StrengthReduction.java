@@ -0,0 +1,189 @@
+package com.reductio;
+
+/**
+ * Strength reduction for the evaluation paths.
+ *
+ * <p>{@link #reduce(Expr)} replaces expensive operations with cheaper ones
+ * before a tree is compiled, flattened or evaluated in batches:
+ *
+ * <ul>
+ *   <li>{@code x ^ n} for integer {@code n} from 2 to
+ *       {@link #MAX_EXPONENT} becomes a chain of multiplications by
+ *       repeated squaring ({@code x^6 = (x*x*x)^2}). {@code x^2} is
+ *       correctly rounded; {@code x^n} is within {@code n - 1} ulp of the
+ *       exact power, where {@link Math#pow} is within 1 ulp.</li>
+ *   <li>{@code e ^ x} becomes {@code exp(x)} when {@code e} is the
+ *       constant {@link Math#E}; a variable named {@code e} keeps its
+ *       bound value. {@code Math.pow(Math.E, x)} raises a rounded
+ *       {@code e}, so the two differ by at most {@code 1 + |x| / 2} ulp,
+ *       {@code exp} being the closer to the true value.</li>
+ *   <li>{@code x / c} for a constant {@code c} that does not trigger the
+ *       division by zero check becomes {@code x * (1 / c)}: two roundings
+ *       instead of one, so at most 2 ulp away from the quotient, and
+ *       exact when {@code c} is a power of two.</li>
+ *   <li>{@code sqrt(x * x)} and {@code sqrt(x ^ 2)} become {@code abs(x)}.
+ *       This is exact whenever {@code x * x} is a normal double; where
+ *       the square overflows or underflows, the result is {@code |x|}
+ *       instead of infinity or zero.</li>
+ * </ul>
+ *
+ * <p>Results are for normal (not subnormal) values. No rewrite removes or
+ * adds an exception. Only the rewritten tree differs from the source: the
+ * tree interpreter, constant folding and the kernels all compute the
+ * powers left in a tree with {@link Math#pow}, so the compiled, postfix
+ * and batch paths differ from {@link Expr#evaluate(java.util.Map)} on the
+ * source by the rewrites above, within their bounds, and give identical
+ * bits when given the same tree.
+ */
+final class StrengthReduction {
+
+    /** Largest integer exponent expanded to multiplications. */
+    static final int MAX_EXPONENT = 8;
+
+    private StrengthReduction() {}
+
+    /**
+     * Returns an expression computing the same value more cheaply.
+     * Unchanged subtrees are reused, and node types other than the
+     * built-in ones are left as they are, as are trees deeper than
+     * {@link DeepTrees#RECURSION_LIMIT}.
+     */
+    static Expr reduce(Expr node) {
+        if (node.depth() > DeepTrees.RECURSION_LIMIT) {
+            return node;
+        }
+        return rewrite(node);
+    }
+
+    private static Expr rewrite(Expr node) {
+        if (node instanceof BinaryOp) {
+            BinaryOp binOp = (BinaryOp) node;
+            Expr left = rewrite(binOp.getLeft());
+            Expr right = rewrite(binOp.getRight());
+            Expr reduced = reduce(binOp.getOpcode(), left, right);
+            if (reduced != null) {
+                return reduced;
+            }
+            return left == binOp.getLeft() && right == binOp.getRight()
+                ? node
+                : new BinaryOp(binOp.getOpcode(), left, right);
+        }
+        if (node.getClass() == FunctionExpr.class) {
+            FunctionExpr function = (FunctionExpr) node;
+            Expr arg = rewrite(function.getArg());
+            if (function.getOpcode() == PostfixProgram.SQRT) {
+                Expr root = squareRoot(arg);
+                if (root != null) {
+                    return new FunctionExpr("abs", root);
+                }
+            }
+            return arg == function.getArg()
+                ? node
+                : new FunctionExpr(function, arg);
+        }
+        return node;
+    }
+
+    /**
+     * Computes {@code x^n} for {@code n >= 1} by squaring, scanning the
+     * bits of {@code n} from the top. {@link #chain(Expr, int)} builds the
+     * same products as a tree.
+     */
+    private static double power(double x, int n) {
+        double p = x;
+        for (int bit = Integer.highestOneBit(n) >> 1; bit != 0; bit >>= 1) {
+            p *= p;
+            if ((n & bit) != 0) {
+                p *= x;
+            }
+        }
+        return p;
+    }
+
+    private static Expr chain(Expr x, int n) {
+        Expr p = x;
+        for (int bit = Integer.highestOneBit(n) >> 1; bit != 0; bit >>= 1) {
+            p = new BinaryOp(PostfixProgram.MUL, p, p);
+            if ((n & bit) != 0) {
+                p = new BinaryOp(PostfixProgram.MUL, p, x);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Rewrites one operation whose operands are already reduced, or
+     * returns null if no rule applies.
+     */
+    private static Expr reduce(int opcode, Expr left, Expr right) {
+        switch (opcode) {
+            case PostfixProgram.POW:
+                if (isConstant(left, Math.E)) {
+                    return new FunctionExpr("exp", right);
+                }
+                int n = smallExponent(right);
+                if (n == 0) {
+                    return null;
+                }
+                if (left instanceof Constant) {
+                    double value = ((Constant) left).getValue();
+                    return new Constant(power(value, n));
+                }
+                return chain(left, n);
+            case PostfixProgram.DIV:
+                if (!(right instanceof Constant)) {
+                    return null;
+                }
+                double divisor = ((Constant) right).getValue();
+                double reciprocal = 1 / divisor;
+                if (
+                    Math.abs(divisor) < 1e-10 ||
+                    Math.abs(reciprocal) < Double.MIN_NORMAL
+                ) {
+                    return null; // keep the check, or a subnormal 1/c
+                }
+                return new BinaryOp(
+                    PostfixProgram.MUL,
+                    left,
+                    new Constant(reciprocal)
+                );
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns {@code x} if the expression is {@code x * x} or
+     * {@code x ^ 2}, otherwise null.
+     */
+    private static Expr squareRoot(Expr arg) {
+        if (!(arg instanceof BinaryOp)) {
+            return null;
+        }
+        BinaryOp binOp = (BinaryOp) arg;
+        boolean square = binOp.getOpcode() == PostfixProgram.MUL
+            ? binOp.getLeft().equals(binOp.getRight())
+            : binOp.getOpcode() == PostfixProgram.POW &&
+              isConstant(binOp.getRight(), 2);
+        return square ? binOp.getLeft() : null;
+    }
+
+    /**
+     * Returns the exponent if it is an integer constant from 2 to
+     * {@link #MAX_EXPONENT}, otherwise 0.
+     */
+    private static int smallExponent(Expr exponent) {
+        if (!(exponent instanceof Constant)) {
+            return 0;
+        }
+        double value = ((Constant) exponent).getValue();
+        int n = (int) value;
+        return n == value && n >= 2 && n <= MAX_EXPONENT ? n : 0;
+    }
+
+    private static boolean isConstant(Expr expr, double value) {
+        return (
+            expr instanceof Constant && ((Constant) expr).getValue() == value
+        );
+    }
+}
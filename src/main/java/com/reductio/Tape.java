@@ -0,0 +1,152 @@
+package com.reductio;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bound expression flattened into parallel arrays: one entry per node of
+ * its DAG, in the order the tree interpreter first evaluates them, with the
+ * opcode of {@link PostfixProgram} and the tape indices of the operands.
+ * The last entry is the root. A {@code LOAD} entry holds its slot in
+ * {@link #left}.
+ */
+final class Tape {
+
+    final int[] ops;
+    final int[] left;
+    final int[] right;
+    final double[] constants;
+    final String[] functionNames;
+    /** Whether the node depends on any variable. */
+    final boolean[] varying;
+
+    /**
+     * Records a bound expression, sharing repeated subtrees.
+     *
+     * @throws UnsupportedOperationException if the tree contains node types
+     *         other than the four built-in ones, or is more than 512 levels
+     *         deep
+     */
+    Tape(Expr bound) {
+        DeepTrees.requireShallow(bound, "record on a tape");
+        Recorder recorder = new Recorder();
+        recorder.record(CommonSubexpressions.share(bound));
+        int length = recorder.nodes.size();
+        this.ops = new int[length];
+        this.left = new int[length];
+        this.right = new int[length];
+        this.constants = new double[length];
+        this.functionNames = new String[length];
+        this.varying = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            recorder.encode(i, this);
+        }
+    }
+
+    int length() {
+        return ops.length;
+    }
+
+    /**
+     * Computes one node from the variable values and the values of the
+     * nodes before it, exactly as {@link Expr#evaluate(double[])} does.
+     */
+    double compute(int i, double[] value, double[] values) {
+        int op = ops[i];
+        if (op == PostfixProgram.CONST) {
+            return constants[i];
+        }
+        if (op == PostfixProgram.LOAD) {
+            return values[left[i]];
+        }
+        double a = value[left[i]];
+        double b = value[right[i]];
+        switch (op) {
+            case PostfixProgram.ADD:
+                return a + b;
+            case PostfixProgram.SUB:
+                return a - b;
+            case PostfixProgram.MUL:
+                return a * b;
+            case PostfixProgram.DIV:
+                return CompiledExpr.divide(a, b);
+            case PostfixProgram.POW:
+                return Math.pow(a, b);
+            case PostfixProgram.SIN:
+                return Math.sin(a);
+            case PostfixProgram.COS:
+                return Math.cos(a);
+            case PostfixProgram.TAN:
+                return Math.tan(a);
+            case PostfixProgram.EXP:
+                return Math.exp(a);
+            case PostfixProgram.ABS:
+                return Math.abs(a);
+            case PostfixProgram.LN:
+                return CompiledExpr.ln(a);
+            case PostfixProgram.LOG:
+                return CompiledExpr.log(a);
+            case PostfixProgram.SQRT:
+                return CompiledExpr.sqrt(a);
+            default:
+                return CompiledExpr.registeredFunction(a, functionNames[i]);
+        }
+    }
+
+    /** Numbers the nodes of a DAG in post-order. */
+    private static final class Recorder {
+
+        private final Map<Expr, Integer> index = new IdentityHashMap<>();
+        private final List<Expr> nodes = new ArrayList<>();
+
+        void record(Expr node) {
+            if (index.containsKey(node)) {
+                return;
+            }
+            if (node instanceof BinaryOp) {
+                record(((BinaryOp) node).getLeft());
+                record(((BinaryOp) node).getRight());
+            } else if (node.getClass() == FunctionExpr.class) {
+                record(((FunctionExpr) node).getArg());
+            } else if (
+                !(node instanceof Constant || node instanceof Variable)
+            ) {
+                throw new UnsupportedOperationException(
+                    node.getClass().getSimpleName() +
+                    " cannot be recorded on a tape"
+                );
+            }
+            index.put(node, nodes.size());
+            nodes.add(node);
+        }
+
+        void encode(int i, Tape tape) {
+            Expr node = nodes.get(i);
+            if (node instanceof Constant) {
+                tape.ops[i] = PostfixProgram.CONST;
+                tape.constants[i] = ((Constant) node).getValue();
+            } else if (node instanceof Variable) {
+                tape.ops[i] = PostfixProgram.LOAD;
+                tape.left[i] = ((Variable) node).getSlot();
+                tape.varying[i] = true;
+            } else if (node instanceof BinaryOp) {
+                BinaryOp binOp = (BinaryOp) node;
+                int l = index.get(binOp.getLeft());
+                int r = index.get(binOp.getRight());
+                tape.ops[i] = binOp.getOpcode();
+                tape.left[i] = l;
+                tape.right[i] = r;
+                tape.varying[i] = tape.varying[l] || tape.varying[r];
+            } else {
+                FunctionExpr function = (FunctionExpr) node;
+                int l = index.get(function.getArg());
+                tape.ops[i] = function.getOpcode();
+                tape.left[i] = l;
+                tape.varying[i] = tape.varying[l];
+                tape.functionNames[i] = function.getName();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.reductio;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An evaluator that starts cheap and gets faster once it is used a lot.
+ *
+ * <p>Calls are first served by the tree interpreter, which costs nothing to
+ * set up. After {@code threshold} invocations a background task flattens
+ * the tree to a {@link PostfixProgram}, publishes it, then generates
+ * bytecode with {@link Expr#compile(Bindings)} and publishes that. Callers
+ * never wait: until a faster tier is published they keep using the current
+ * one. Formulas evaluated only a handful of times therefore pay neither
+ * for compilation nor for the generated class.
+ *
+ * <pre>{@code
+ * TieredExpr formula = Parser.parse("3x^2 + 2x + 1").tiered();
+ * for (double x : inputs) {
+ *     total += formula.applyAsDouble(x);
+ * }
+ * }</pre>
+ *
+ * <p>Every tier evaluates the tree as {@link Expr#compile()} rewrites it,
+ * so all tiers give the same results and exceptions; like those of any
+ * {@link CompiledExpr}, results may differ slightly from
+ * {@link Expr#evaluate(java.util.Map)} on the source. Instances are
+ * thread-safe.
+ *
+ * @author Reductio Team
+ * @version 1.2.0
+ * @since 1.2.0
+ */
+public final class TieredExpr extends CompiledExpr {
+
+    /** Default number of invocations before promotion starts. */
+    public static final int DEFAULT_THRESHOLD = 1_000;
+
+    /**
+     * Execution tiers, from slowest to fastest.
+     */
+    public enum Tier {
+        /** Recursive tree evaluation. */
+        TREE,
+        /** Postfix stack machine. */
+        POSTFIX,
+        /** Generated bytecode. */
+        COMPILED,
+    }
+
+    private final int threshold;
+    private final Executor executor;
+    /** The tree the tree tier evaluates, as the other tiers compile it. */
+    private final Expr reduced;
+    private final AtomicBoolean promotionStarted = new AtomicBoolean();
+
+    // Lost updates are harmless: the counter only triggers promotion.
+    private int invocations;
+    private volatile CompiledExpr promoted;
+
+    private TieredExpr(
+        Expr bound,
+        List<String> variables,
+        int threshold,
+        Executor executor
+    ) {
+        super(bound, variables);
+        this.threshold = threshold;
+        this.executor = executor;
+        this.reduced = StrengthReduction.reduce(bound);
+    }
+
+    /**
+     * Creates a tiered evaluator using the slot layout of the bindings.
+     *
+     * @param expr the expression
+     * @param bindings the bindings holding the slot layout
+     * @param threshold invocations before promotion starts; 0 promotes
+     *        on the first call
+     * @param executor the executor running promotions
+     * @return the tiered evaluator
+     * @throws IllegalArgumentException if threshold is negative
+     */
+    public static TieredExpr of(
+        Expr expr,
+        Bindings bindings,
+        int threshold,
+        Executor executor
+    ) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                "Threshold cannot be negative"
+            );
+        }
+        Objects.requireNonNull(executor, "Executor cannot be null");
+        return new TieredExpr(
+            expr.bind(bindings),
+            bindings.getNames(),
+            threshold,
+            executor
+        );
+    }
+
+    /**
+     * Creates a tiered evaluator with variables in order of first
+     * appearance, {@link #DEFAULT_THRESHOLD} and promotion on the common
+     * fork/join pool.
+     *
+     * @param expr the expression
+     * @return the tiered evaluator
+     */
+    static TieredExpr of(Expr expr) {
+        return of(
+            expr,
+            Bindings.of(expr),
+            DEFAULT_THRESHOLD,
+            ForkJoinPool.commonPool()
+        );
+    }
+
+    @Override
+    public double applyAsDouble(double[] values) {
+        CompiledExpr current = promoted;
+        if (current != null) {
+            return current.applyAsDouble(values);
+        }
+        if (invocations < threshold) {
+            invocations++;
+        } else if (promotionStarted.compareAndSet(false, true)) {
+            schedulePromotion();
+        }
+        return reduced.evaluate(values);
+    }
+
+    /**
+     * Gets the tier currently serving calls.
+     *
+     * @return the current tier
+     */
+    public Tier getTier() {
+        CompiledExpr current = promoted;
+        if (current == null) {
+            return Tier.TREE;
+        }
+        return current instanceof PostfixProgram
+            ? Tier.POSTFIX
+            : Tier.COMPILED;
+    }
+
+    /**
+     * Gets the number of invocations counted so far. Counting stops at the
+     * threshold, and concurrent calls may be missed.
+     *
+     * @return the approximate invocation count
+     */
+    public int getInvocationCount() {
+        return invocations;
+    }
+
+    /**
+     * Gets the number of invocations before promotion starts.
+     *
+     * @return the threshold
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    private void schedulePromotion() {
+        try {
+            executor.execute(this::promote);
+        } catch (RejectedExecutionException e) {
+            // Stay on the tree tier; a later call may try again.
+            promotionStarted.set(false);
+        }
+    }
+
+    private void promote() {
+        Expr source = getSource();
+        if (
+            source.depth() > DeepTrees.RECURSION_LIMIT ||
+            !ExprCompiler.isCompilable(source)
+        ) {
+            return; // no faster tier would walk it without recursion
+        }
+        List<String> variables = getVariables();
+        try {
+            promoted = PostfixProgram.of(source, variables);
+        } catch (RuntimeException e) {
+            // Operands too large to encode; wait for bytecode instead.
+        }
+        Bindings bindings = new Bindings(variables.toArray(new String[0]));
+        promoted = ExprCompiler.compile(source, bindings);
+    }
+
+    @Override
+    public String toString() {
+        return "TieredExpr[" + getTier() + ", " + getSource().show() + "]";
+    }
+}
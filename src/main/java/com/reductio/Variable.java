@@ -13,6 +13,9 @@ import java.util.Objects;
 public final class Variable extends Expr {
 
     private final String name;
+    private final int slot;
+    /** Of the name only, as {@link #equals(Object)} ignores the slot. */
+    private final long fingerprint;
 
     /**
      * Creates a new variable with the specified name.
@@ -21,12 +24,18 @@ public final class Variable extends Expr {
      * @throws IllegalArgumentException if name is null or empty
      */
     public Variable(String name) {
+        this(name, -1);
+    }
+
+    Variable(String name, int slot) {
         if (name == null || name.trim().isEmpty()) {
             throw new IllegalArgumentException(
                 "Variable name cannot be null or empty"
             );
         }
         this.name = name.trim();
+        this.slot = slot;
+        this.fingerprint = mix(PostfixProgram.LOAD, hash(this.name));
     }
 
     /**
@@ -38,6 +47,15 @@ public final class Variable extends Expr {
         return name;
     }
 
+    /**
+     * Gets the slot this variable reads in {@link #evaluate(double[])}.
+     *
+     * @return the slot index, or -1 if the variable is not bound
+     */
+    public int getSlot() {
+        return slot;
+    }
+
     @Override
     public Expr simplify() {
         return this;
@@ -58,17 +76,34 @@ public final class Variable extends Expr {
 
     @Override
     public double evaluate(Map<String, Double> variables) {
-        if (variables == null || !variables.containsKey(name)) {
+        Double value = variables == null ? null : variables.get(name);
+        if (value == null) {
             throw new IllegalArgumentException(
                 "Value for variable '" + name + "' not provided"
             );
         }
-        return variables.get(name);
+        return value;
+    }
+
+    @Override
+    public double evaluate(double[] values) {
+        if (slot < 0) {
+            throw new IllegalStateException(
+                "Variable '" + name + "' is not bound to a slot"
+            );
+        }
+        return values[slot];
+    }
+
+    @Override
+    public Expr bind(Bindings bindings) {
+        int resolved = bindings.resolve(name);
+        return resolved == slot ? this : new Variable(name, resolved);
     }
 
     @Override
     public Expr copy() {
-        return new Variable(name);
+        return this;
     }
 
     @Override
@@ -81,7 +116,12 @@ public final class Variable extends Expr {
 
     @Override
     public int hashCode() {
-        return Objects.hash(name);
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    public long fingerprint() {
+        return fingerprint;
     }
 
     /**
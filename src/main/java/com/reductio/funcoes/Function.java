@@ -4,6 +4,8 @@ import com.reductio.BinaryOp;
 import com.reductio.Constant;
 import com.reductio.Expr;
 import com.reductio.FunctionExpr;
+import com.reductio.ParallelEvaluator;
+import com.reductio.Polynomials;
 import com.reductio.Variable;
 import com.reductio.funcoes.exponencial.Exponencial;
 import com.reductio.funcoes.logaritmica.Logaritmica;
@@ -116,7 +118,13 @@ public abstract class Function {
             case 3:
                 return new Cubica(exprStr, variable);
             default:
-                return new Polinomial(exprStr, variable);
+                double[] coefficients = Polynomials.coefficients(
+                    expr,
+                    variable
+                );
+                return coefficients != null
+                    ? new Polinomial(exprStr, variable, coefficients)
+                    : new Polinomial(exprStr, variable);
         }
     }
 
@@ -213,7 +221,7 @@ public abstract class Function {
     private static boolean containsLogarithm(Expr expr) {
         if (expr instanceof FunctionExpr) {
             FunctionExpr func = (FunctionExpr) expr;
-            return "ln".equals(func.name) || "log".equals(func.name);
+            return "ln".equals(func.getName()) || "log".equals(func.getName());
         }
 
         if (expr instanceof BinaryOp) {
@@ -231,12 +239,12 @@ public abstract class Function {
         if (expr instanceof FunctionExpr) {
             FunctionExpr func = (FunctionExpr) expr;
             return (
-                "sin".equals(func.name) ||
-                "cos".equals(func.name) ||
-                "tan".equals(func.name) ||
-                "sec".equals(func.name) ||
-                "csc".equals(func.name) ||
-                "cot".equals(func.name)
+                "sin".equals(func.getName()) ||
+                "cos".equals(func.getName()) ||
+                "tan".equals(func.getName()) ||
+                "sec".equals(func.getName()) ||
+                "csc".equals(func.getName()) ||
+                "cot".equals(func.getName())
             );
         }
 
@@ -266,7 +274,7 @@ public abstract class Function {
 
         if (expr instanceof FunctionExpr) {
             FunctionExpr func = (FunctionExpr) expr;
-            return containsVariable(func.arg, variable);
+            return containsVariable(func.getArg(), variable);
         }
 
         return false;
@@ -318,6 +326,47 @@ public abstract class Function {
         return evaluate(variables.get(variable));
     }
 
+    /**
+     * Evaluates the function at every value, writing
+     * {@code out[i] = evaluate(values[i])}.
+     *
+     * @param values the input values
+     * @param out the output array, at least as long as values
+     * @throws IllegalArgumentException if out is shorter than values, or a
+     *         value is outside the domain
+     */
+    public void evaluate(double[] values, double[] out) {
+        if (values == null || out == null) {
+            throw new IllegalArgumentException(
+                "Values and output cannot be null"
+            );
+        }
+        if (out.length < values.length) {
+            throw new IllegalArgumentException(
+                "Output has " + out.length + " rows, expected at least " +
+                values.length
+            );
+        }
+        for (int i = 0; i < values.length; i++) {
+            out[i] = evaluate(values[i]);
+        }
+    }
+
+    /**
+     * Evaluates the function at every value like
+     * {@link #evaluate(double[], double[])}, splitting large inputs across
+     * the common fork/join pool. Use a {@link ParallelEvaluator} to choose
+     * the executor or the size threshold.
+     *
+     * @param values the input values
+     * @param out the output array, at least as long as values
+     * @throws IllegalArgumentException if out is shorter than values, or a
+     *         value is outside the domain
+     */
+    public void evaluateParallel(double[] values, double[] out) {
+        ParallelEvaluator.getDefault().evaluate(this::evaluate, values, out);
+    }
+
     /**
      * Gets the mathematical expression as a string.
      *
@@ -337,7 +386,10 @@ public abstract class Function {
     }
 
     /**
-     * Checks if this function is defined at the given value.
+     * Checks if this function is defined at the given value, that is, if
+     * {@link #evaluate(double)} returns instead of throwing. This default
+     * evaluates and catches the exception; subclasses that can test their
+     * domain directly override it to avoid creating one.
      *
      * @param value the input value
      * @return true if function is defined at this value
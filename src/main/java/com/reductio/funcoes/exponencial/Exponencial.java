@@ -240,6 +240,11 @@ public class Exponencial extends Function {
         return a * Math.pow(base, expoente) + e;
     }
 
+    @Override
+    public boolean isDefinedAt(double x) {
+        return true; // definida em todo ℝ
+    }
+
     /**
      * Verifica se a função é crescente
      */
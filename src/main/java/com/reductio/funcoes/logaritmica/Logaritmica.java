@@ -267,6 +267,12 @@ public class Logaritmica extends Function {
         return a * (Math.log(argumento) / Math.log(base)) + e;
     }
 
+    @Override
+    public boolean isDefinedAt(double x) {
+        double argumento = c * x + d;
+        return !(argumento <= 0); // o mesmo teste de evaluate, NaN incluso
+    }
+
     /**
      * Verifica se a função é crescente
      */
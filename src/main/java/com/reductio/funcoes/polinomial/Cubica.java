@@ -1,5 +1,7 @@
 package com.reductio.funcoes.polinomial;
 
+import com.reductio.Polynomials;
+
 /**
  * Classe para funções cúbicas
  * Representa funções do tipo f(x) = ax³ + bx² + cx + d
@@ -141,7 +143,9 @@ public class Cubica extends Polinomial {
 
     @Override
     public double evaluate(double x) {
-        return a * x * x * x + b * x * x + c * x + d;
+        double horner = Polynomials.multiplyAdd(a, x, b);
+        horner = Polynomials.multiplyAdd(horner, x, c);
+        return Polynomials.multiplyAdd(horner, x, d);
     }
 
     /**
@@ -254,7 +258,12 @@ public class Cubica extends Polinomial {
 
         for (int i = 0; i < maxIteracoes; i++) {
             double fx = evaluate(x);
-            double fpx = primeiraDerivada().evaluate(x);
+            // f'(x) = 3ax² + 2bx + c, sem alocar a Quadrada da derivada
+            double fpx = Polynomials.multiplyAdd(
+                Polynomials.multiplyAdd(3 * a, x, 2 * b),
+                x,
+                c
+            );
 
             if (Math.abs(fpx) < 1e-12) {
                 return Double.NaN; // Derivada muito pequena
@@ -1,5 +1,7 @@
 package com.reductio.funcoes.polinomial;
 
+import com.reductio.Polynomials;
+
 /**
  * Classe para funções lineares
  * Representa funções do tipo f(x) = ax + b
@@ -100,7 +102,7 @@ public class Linear extends Polinomial {
 
     @Override
     public double evaluate(double x) {
-        return a * x + b;
+        return Polynomials.multiplyAdd(a, x, b);
     }
 
     /**
@@ -1,5 +1,6 @@
 package com.reductio.funcoes.polinomial;
 
+import com.reductio.Polynomials;
 import com.reductio.funcoes.Function;
 
 /**
@@ -23,6 +24,20 @@ public class Polinomial extends Function {
         this.coeficientes = extrairCoeficientes(expression, variable);
     }
 
+    /**
+     * Cria o polinômio de uma expressão cujos coeficientes já são conhecidos
+     * (ver {@link Polynomials#coefficients})
+     */
+    public Polinomial(
+        String expression,
+        String variable,
+        double[] coeficientes
+    ) {
+        super(expression, variable);
+        this.coeficientes = coeficientes.clone();
+        this.grau = coeficientes.length - 1;
+    }
+
     public Polinomial(double[] coeficientes, String variable) {
         super(construirExpressao(coeficientes, variable), variable);
         this.coeficientes = coeficientes.clone();
@@ -154,17 +169,18 @@ public class Polinomial extends Function {
         }
     }
 
+    /**
+     * Avalia o polinômio pela regra de Horner, com multiplicação e soma
+     * fundidas quando o hardware suporta (ver {@link Polynomials})
+     */
     @Override
     public double evaluate(double value) {
-        double resultado = 0;
-        double potencia = 1;
-
-        for (int i = 0; i <= grau; i++) {
-            resultado += coeficientes[i] * potencia;
-            potencia *= value;
-        }
+        return Polynomials.evaluate(coeficientes, value);
+    }
 
-        return resultado;
+    @Override
+    public boolean isDefinedAt(double x) {
+        return true; // definida em todo ℝ
     }
 
     /**
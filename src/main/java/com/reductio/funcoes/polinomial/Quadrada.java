@@ -1,5 +1,7 @@
 package com.reductio.funcoes.polinomial;
 
+import com.reductio.Polynomials;
+
 /**
  * Classe para funções quadráticas
  * Representa funções do tipo f(x) = ax² + bx + c
@@ -123,7 +125,11 @@ public class Quadrada extends Polinomial {
 
     @Override
     public double evaluate(double x) {
-        return a * x * x + b * x + c;
+        return Polynomials.multiplyAdd(
+            Polynomials.multiplyAdd(a, x, b),
+            x,
+            c
+        );
     }
 
     /**
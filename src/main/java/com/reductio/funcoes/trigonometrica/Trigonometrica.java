@@ -294,6 +294,21 @@ public class Trigonometrica extends Function {
         return resultado;
     }
 
+    @Override
+    public boolean isDefinedAt(double x) {
+        switch (funcaoTrig) {
+            case "sin":
+            case "cos":
+            case "tan":
+            case "sec":
+            case "csc":
+            case "cot":
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /**
      * Calcula o período da função
      */
@@ -0,0 +1,252 @@
+package com.reductio;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the block loops, shipped in the JDK 17 layer of
+ * the multi-release jar and loaded reflectively by {@link BlockKernels}.
+ *
+ * <p>Only operations whose lanewise results are bit-identical to the
+ * scalar loops are vectorized: {@code + - * /}, {@code sqrt} and
+ * {@code abs}. The Vector API transcendental functions (sin, exp, log, ...)
+ * may differ from {@link Math} in the last ulp, so those stay scalar.
+ *
+ * <p>Each operator has its own loop: C2 only intrinsifies vector
+ * operations whose operator is a compile-time constant.
+ */
+final class VectorKernels extends BlockKernels {
+
+    private static final VectorSpecies<Double> SPECIES =
+        DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    String name() {
+        return "vector" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    void vectorVector(
+        String op,
+        double[] a,
+        int aOffset,
+        double[] b,
+        int bOffset,
+        double[] dest,
+        int length
+    ) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        switch (op) {
+            case "+":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).add(load(b, bOffset + i))
+                        .intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] + b[bOffset + i];
+                }
+                break;
+            case "-":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).sub(load(b, bOffset + i))
+                        .intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] - b[bOffset + i];
+                }
+                break;
+            case "*":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).mul(load(b, bOffset + i))
+                        .intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] * b[bOffset + i];
+                }
+                break;
+            case "/":
+                checkDivisors(b, bOffset, length);
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).div(load(b, bOffset + i))
+                        .intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] / b[bOffset + i];
+                }
+                break;
+            default:
+                super.vectorVector(op, a, aOffset, b, bOffset, dest, length);
+        }
+    }
+
+    @Override
+    void vectorScalar(
+        String op,
+        double[] a,
+        int aOffset,
+        double b,
+        double[] dest,
+        int length
+    ) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        switch (op) {
+            case "+":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).add(b).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] + b;
+                }
+                break;
+            case "-":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).sub(b).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] - b;
+                }
+                break;
+            case "*":
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).mul(b).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] * b;
+                }
+                break;
+            case "/":
+                if (length > 0 && Math.abs(b) < 1e-10) {
+                    throw new ArithmeticException("Division by zero");
+                }
+                for (; i < bound; i += LANES) {
+                    load(a, aOffset + i).div(b).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a[aOffset + i] / b;
+                }
+                break;
+            default:
+                super.vectorScalar(op, a, aOffset, b, dest, length);
+        }
+    }
+
+    @Override
+    void scalarVector(
+        String op,
+        double a,
+        double[] b,
+        int bOffset,
+        double[] dest,
+        int length
+    ) {
+        DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        switch (op) {
+            case "+":
+                for (; i < bound; i += LANES) {
+                    va.add(load(b, bOffset + i)).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a + b[bOffset + i];
+                }
+                break;
+            case "-":
+                for (; i < bound; i += LANES) {
+                    va.sub(load(b, bOffset + i)).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a - b[bOffset + i];
+                }
+                break;
+            case "*":
+                for (; i < bound; i += LANES) {
+                    va.mul(load(b, bOffset + i)).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a * b[bOffset + i];
+                }
+                break;
+            case "/":
+                checkDivisors(b, bOffset, length);
+                for (; i < bound; i += LANES) {
+                    va.div(load(b, bOffset + i)).intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = a / b[bOffset + i];
+                }
+                break;
+            default:
+                super.scalarVector(op, a, b, bOffset, dest, length);
+        }
+    }
+
+    @Override
+    void function(
+        String name,
+        double[] arg,
+        int offset,
+        double[] dest,
+        int length
+    ) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        switch (name) {
+            case "sqrt":
+                for (; i < bound; i += LANES) {
+                    DoubleVector v = load(arg, offset + i);
+                    if (v.compare(VectorOperators.LT, 0.0).anyTrue()) {
+                        throw new IllegalArgumentException(
+                            "sqrt argument must be non-negative"
+                        );
+                    }
+                    v.sqrt().intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = CompiledExpr.sqrt(arg[offset + i]);
+                }
+                break;
+            case "abs":
+                for (; i < bound; i += LANES) {
+                    load(arg, offset + i).abs().intoArray(dest, i);
+                }
+                for (; i < length; i++) {
+                    dest[i] = Math.abs(arg[offset + i]);
+                }
+                break;
+            default:
+                super.function(name, arg, offset, dest, length);
+        }
+    }
+
+    private static DoubleVector load(double[] array, int offset) {
+        return DoubleVector.fromArray(SPECIES, array, offset);
+    }
+
+    /**
+     * Same test as BinaryOp: |divisor| &lt; 1e-10 is a division by zero.
+     */
+    private static void checkDivisors(double[] b, int bOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            if (
+                load(b, bOffset + i)
+                    .abs()
+                    .compare(VectorOperators.LT, 1e-10)
+                    .anyTrue()
+            ) {
+                throw new ArithmeticException("Division by zero");
+            }
+        }
+        for (; i < length; i++) {
+            if (Math.abs(b[bOffset + i]) < 1e-10) {
+                throw new ArithmeticException("Division by zero");
+            }
+        }
+    }
+}